@@ -0,0 +1,1476 @@
+package com.blackaby.Backend.Emulation.CPU;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Translates a decoded guest basic block into a JVM class.
+ * <p>
+ * Each block becomes a hidden class implementing
+ * {@link DuckRecompiler.CompiledBlock}. Its {@code run} method is the block's
+ * instructions translated one by one into bytecode. The registers the block
+ * uses are copied into locals on entry and written back when it exits, memory
+ * is accessed with direct calls to {@code DuckMemory.read} and {@code write},
+ * and the flags are worked out in a local with plain integer operations.
+ * Operands, jump targets and cycle counts are constants. A flag is only
+ * computed when a later instruction in the block, or the code after the
+ * block, can read it. DAA is the one instruction that calls out, to the
+ * switch core's {@link DuckSwitchCPU#decimalAdjust(int, int)}.
+ * </p>
+ * <p>
+ * After instructions that may write memory, the block can exit early when the
+ * recompiler flags that the code it was built from has changed.
+ * </p>
+ * <p>
+ * The class file is written by hand. It uses class file version 49 so that
+ * the branches do not need a StackMapTable.
+ * </p>
+ */
+public class BlockCompiler {
+
+    /**
+     * HotSpot does not JIT-compile methods with more bytecode than this, so
+     * larger blocks are refused.
+     */
+    public static final int MAX_CODE_LENGTH = 8000;
+
+    private static final int CLASS_VERSION = 49;
+    private static final String BLOCK_CLASS = "com/blackaby/Backend/Emulation/CPU/CompiledBlock";
+    private static final String CPU_CLASS = "com/blackaby/Backend/Emulation/CPU/DuckCPU";
+    private static final String SWITCH_CPU_CLASS = "com/blackaby/Backend/Emulation/CPU/DuckSwitchCPU";
+    private static final String RECOMPILER_CLASS = "com/blackaby/Backend/Emulation/CPU/DuckRecompiler";
+    private static final String MEMORY_CLASS = "com/blackaby/Backend/Emulation/Memory/DuckMemory";
+    private static final String BLOCK_INTERFACE = RECOMPILER_CLASS + "$CompiledBlock";
+
+    // Constant pool tags
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // Bytecodes
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE = 0x3A;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int ISHL = 0x78;
+    private static final int ISHR = 0x7A;
+    private static final int IUSHR = 0x7C;
+    private static final int IAND = 0x7E;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9A;
+    private static final int GOTO = 0xA7;
+    private static final int IRETURN = 0xAC;
+    private static final int RETURN = 0xB1;
+    private static final int GETFIELD = 0xB4;
+    private static final int PUTFIELD = 0xB5;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKESTATIC = 0xB8;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // Local variable slots of the run method. A to L, SP and F sit in slots
+    // 3-11 so that slot - A indexes REGISTER_FIELDS
+    private static final int CPU = 1;
+    private static final int CYCLES = 2;
+    private static final int A = 3;
+    private static final int B = 4;
+    private static final int C = 5;
+    private static final int D = 6;
+    private static final int E = 7;
+    private static final int H = 8;
+    private static final int L = 9;
+    private static final int SP = 10;
+    private static final int F = 11;
+    private static final int MEMORY = 12;
+    private static final int PC = 13;
+    private static final int T0 = 14;
+    private static final int T1 = 15;
+    private static final int T2 = 16;
+    private static final int PAIR = 17;
+    private static final int MAX_LOCALS = 18;
+    private static final int MAX_STACK = 8;
+
+    private static final String[] REGISTER_FIELDS = {
+            "accumulator", "registerB", "registerC", "registerD", "registerE", "registerH", "registerL",
+            "stackPointer"
+    };
+    // Slots of the 3-bit register indices used by opcodes; (HL) has none
+    private static final int[] REGISTER_SLOTS = { B, C, D, E, H, L, -1, A };
+    // High and low register slots of the pair indices BC, DE and HL
+    private static final int[] PAIR_HIGH = { B, D, H };
+    private static final int[] PAIR_LOW = { C, E, L };
+
+    private static final int FLAG_Z = 0x80;
+    private static final int FLAG_N = 0x40;
+    private static final int FLAG_H = 0x20;
+    private static final int FLAG_C = 0x10;
+    private static final int ALL_FLAGS = 0xF0;
+
+    // For each dispatch table index, the flags read in bits 8-15 and the
+    // flags written in bits 0-7
+    private static final int[] FLAG_EFFECTS = new int[0x200];
+
+    static {
+        for (int opcode = 0x80; opcode <= 0xBF; opcode++)
+            FLAG_EFFECTS[opcode] = ALL_FLAGS;
+        for (int operation = 0; operation < 8; operation++) {
+            FLAG_EFFECTS[0xC6 | operation << 3] = ALL_FLAGS;
+            FLAG_EFFECTS[0x04 | operation << 3] = FLAG_Z | FLAG_N | FLAG_H;
+            FLAG_EFFECTS[0x05 | operation << 3] = FLAG_Z | FLAG_N | FLAG_H;
+        }
+        for (int opcode : new int[] { 0x88, 0x98, 0xCE, 0xDE })
+            for (int register = 0; register < (opcode < 0xC0 ? 8 : 1); register++)
+                FLAG_EFFECTS[opcode + register] |= FLAG_C << 8;
+        for (int opcode = 0x09; opcode <= 0x39; opcode += 0x10)
+            FLAG_EFFECTS[opcode] = FLAG_N | FLAG_H | FLAG_C;
+        FLAG_EFFECTS[0xE8] = ALL_FLAGS;
+        FLAG_EFFECTS[0xF8] = ALL_FLAGS;
+        FLAG_EFFECTS[0x27] = ALL_FLAGS << 8 | ALL_FLAGS; // DAA
+        FLAG_EFFECTS[0x2F] = FLAG_N | FLAG_H; // CPL
+        FLAG_EFFECTS[0x37] = FLAG_N | FLAG_H | FLAG_C; // SCF
+        FLAG_EFFECTS[0x3F] = FLAG_C << 8 | FLAG_N | FLAG_H | FLAG_C; // CCF
+        FLAG_EFFECTS[0x07] = ALL_FLAGS;
+        FLAG_EFFECTS[0x0F] = ALL_FLAGS;
+        FLAG_EFFECTS[0x17] = FLAG_C << 8 | ALL_FLAGS;
+        FLAG_EFFECTS[0x1F] = FLAG_C << 8 | ALL_FLAGS;
+        FLAG_EFFECTS[0xF5] = ALL_FLAGS << 8; // PUSH AF
+        FLAG_EFFECTS[0xF1] = ALL_FLAGS; // POP AF
+        // Conditional jumps, calls and returns
+        for (int opcode : new int[] { 0x20, 0x28, 0xC0, 0xC2, 0xC4, 0xC8, 0xCA, 0xCC })
+            FLAG_EFFECTS[opcode] = FLAG_Z << 8;
+        for (int opcode : new int[] { 0x30, 0x38, 0xD0, 0xD2, 0xD4, 0xD8, 0xDA, 0xDC })
+            FLAG_EFFECTS[opcode] = FLAG_C << 8;
+
+        int cb = DuckDecoder.CB_TABLE_OFFSET;
+        for (int opcode = 0x00; opcode <= 0x3F; opcode++)
+            FLAG_EFFECTS[cb | opcode] = ALL_FLAGS;
+        for (int opcode = 0x10; opcode <= 0x1F; opcode++)
+            FLAG_EFFECTS[cb | opcode] |= FLAG_C << 8; // RL, RR
+        for (int opcode = 0x40; opcode <= 0x7F; opcode++)
+            FLAG_EFFECTS[cb | opcode] = FLAG_Z | FLAG_N | FLAG_H; // BIT
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final ByteArrayOutputStream constantBytes = new ByteArrayOutputStream();
+    private final DataOutputStream constants = new DataOutputStream(constantBytes);
+    private final HashMap<String, Integer> constantIndices = new HashMap<>();
+    private int constantCount = 1;
+
+    // The body of the run method, and the branches in it still to be patched
+    private byte[] code = new byte[1024];
+    private int length;
+    private final ArrayList<Integer> labels = new ArrayList<>();
+    private final ArrayList<int[]> branches = new ArrayList<>();
+
+    // Which of the slots A to F the body reads or writes, and writes
+    private final boolean[] used = new boolean[F + 1];
+    private final boolean[] written = new boolean[F + 1];
+    private boolean usesMemory;
+    private int exit;
+
+    private BlockCompiler() {
+    }
+
+    /**
+     * Compiles a block and returns a new instance of it.
+     *
+     * @param instructions The opcode of each instruction in bits 0-8 (with
+     *                     0x100 set for CB opcodes), its first operand in
+     *                     bits 9-16 and its second operand in bits 17-24
+     * @param nextPcs      The program counter following each instruction
+     * @param abortChecks  Whether to check for an early exit after each
+     *                     instruction
+     * @param count        The number of instructions in the block
+     * @return The compiled block, or null if its bytecode would be too long
+     *         to be JIT-compiled
+     */
+    public static DuckRecompiler.CompiledBlock compile(int[] instructions, int[] nextPcs, boolean[] abortChecks,
+            int count) {
+        try {
+            byte[] classFile = new BlockCompiler().assemble(instructions, nextPcs, abortChecks, count);
+            if (classFile == null)
+                return null;
+            Class<?> blockClass = LOOKUP.defineHiddenClass(classFile, true).lookupClass();
+            return (DuckRecompiler.CompiledBlock) blockClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | IOException e) {
+            throw new IllegalStateException("Failed to compile block", e);
+        }
+    }
+
+    /**
+     * Writes the class file for a block.
+     *
+     * @param instructions The packed instructions
+     * @param nextPcs      The program counter following each instruction
+     * @param abortChecks  Whether to check for an early exit after each
+     *                     instruction
+     * @param count        The number of instructions in the block
+     * @return The class file bytes, or null if the run method is too long
+     * @throws IOException Never thrown by the in-memory streams
+     */
+    private byte[] assemble(int[] instructions, int[] nextPcs, boolean[] abortChecks, int count)
+            throws IOException {
+        // Work back from the end of the block to find which flags each
+        // instruction's successors can read; every exit leaves all of them
+        int[] liveFlags = new int[count];
+        int live = ALL_FLAGS;
+        for (int i = count - 1; i >= 0; i--) {
+            if (abortChecks[i])
+                live = ALL_FLAGS;
+            liveFlags[i] = live;
+            int effects = FLAG_EFFECTS[instructions[i] & 0x1FF];
+            live = (live & ~effects) | (effects >> 8);
+        }
+
+        exit = newLabel();
+        int cycles = 0;
+        boolean exited = false;
+        for (int i = 0; i < count; i++) {
+            int instructionCycles = emitInstruction(instructions[i], nextPcs[i], liveFlags[i], cycles);
+            if (instructionCycles < 0) {
+                exited = true;
+                break;
+            }
+            cycles += instructionCycles;
+            if (abortChecks[i] && i < count - 1) {
+                // Leave after this instruction if the code behind the block changed
+                int next = newLabel();
+                op(ALOAD_1);
+                op(GETFIELD);
+                u2(memberConstant(CONSTANT_FIELDREF, RECOMPILER_CLASS, "blockAborted", "Z"));
+                branch(IFEQ, next);
+                exitTo(nextPcs[i], cycles);
+                bind(next);
+            }
+        }
+        if (!exited) {
+            push(nextPcs[count - 1]);
+            istore(PC);
+            push(cycles);
+            istore(CYCLES);
+        }
+
+        bind(exit);
+        for (int slot = A; slot <= SP; slot++) {
+            if (written[slot]) {
+                op(ALOAD_1);
+                op(ILOAD);
+                u1(slot);
+                op(PUTFIELD);
+                u2(memberConstant(CONSTANT_FIELDREF, CPU_CLASS, REGISTER_FIELDS[slot - A], "I"));
+            }
+        }
+        op(ALOAD_1);
+        op(ILOAD);
+        u1(PC);
+        op(PUTFIELD);
+        u2(memberConstant(CONSTANT_FIELDREF, CPU_CLASS, "programCounter", "I"));
+        if (written[F]) {
+            op(ALOAD_1);
+            op(ILOAD);
+            u1(F);
+            invoke(INVOKEVIRTUAL, CPU_CLASS, "setFlags", "(I)V");
+        }
+        op(ILOAD);
+        u1(CYCLES);
+        op(IRETURN);
+        for (int[] jump : branches) {
+            int offset = labels.get(jump[1]) - jump[0];
+            code[jump[0] + 1] = (byte) (offset >> 8);
+            code[jump[0] + 2] = (byte) offset;
+        }
+        byte[] body = Arrays.copyOf(code, length);
+
+        // Load what the body uses; branches are relative, so it can move
+        length = 0;
+        if (usesMemory) {
+            op(ALOAD_1);
+            op(GETFIELD);
+            u2(memberConstant(CONSTANT_FIELDREF, CPU_CLASS, "memory", "L" + MEMORY_CLASS + ";"));
+            op(ASTORE);
+            u1(MEMORY);
+        }
+        for (int slot = A; slot <= SP; slot++) {
+            if (used[slot]) {
+                op(ALOAD_1);
+                op(GETFIELD);
+                u2(memberConstant(CONSTANT_FIELDREF, CPU_CLASS, REGISTER_FIELDS[slot - A], "I"));
+                op(ISTORE);
+                u1(slot);
+            }
+        }
+        if (used[F]) {
+            op(ALOAD_1);
+            invoke(INVOKEVIRTUAL, CPU_CLASS, "getFlags", "()I");
+            op(ISTORE);
+            u1(F);
+        }
+        byte[] prologue = Arrays.copyOf(code, length);
+        if (prologue.length + body.length > MAX_CODE_LENGTH)
+            return null;
+        byte[] runCode = Arrays.copyOf(prologue, prologue.length + body.length);
+        System.arraycopy(body, 0, runCode, prologue.length, body.length);
+
+        int thisClass = classConstant(BLOCK_CLASS);
+        int objectClass = classConstant("java/lang/Object");
+        int blockInterface = classConstant(BLOCK_INTERFACE);
+        int objectInit = memberConstant(CONSTANT_METHODREF, "java/lang/Object", "<init>", "()V");
+        int codeName = utf8Constant("Code");
+        int initName = utf8Constant("<init>");
+        int initType = utf8Constant("()V");
+        int runName = utf8Constant("run");
+        int runType = utf8Constant("(L" + RECOMPILER_CLASS + ";)I");
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+        out.writeShort(constantCount);
+        constants.flush();
+        constantBytes.writeTo(out);
+        out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(objectClass);
+        out.writeShort(1);
+        out.writeShort(blockInterface);
+        out.writeShort(0); // fields
+        out.writeShort(2); // methods
+
+        byte[] initCode = { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+                (byte) RETURN };
+        writeMethod(out, initName, initType, codeName, 1, 1, initCode);
+        writeMethod(out, runName, runType, codeName, MAX_STACK, MAX_LOCALS, runCode);
+
+        out.writeShort(0); // attributes
+        return classBytes.toByteArray();
+    }
+
+    /**
+     * Emits one instruction. Results, flags and cycle counts match
+     * {@link DuckSwitchCPU}.
+     *
+     * @param instruction The packed instruction
+     * @param nextPc      The address of the following instruction
+     * @param liveFlags   The flags that can be read after the instruction
+     * @param cycles      The M-cycles used by the block before it
+     * @return The M-cycles the instruction uses, or -1 if it ends the block
+     *         and has already set the exit program counter and cycle count
+     * @throws IOException Never thrown by the in-memory streams
+     */
+    private int emitInstruction(int instruction, int nextPc, int liveFlags, int cycles) throws IOException {
+        int opcode = instruction & 0x1FF;
+        int low = (instruction >> 9) & 0xFF;
+        int high = (instruction >> 17) & 0xFF;
+        int need = FLAG_EFFECTS[opcode] & liveFlags;
+        if (opcode >= DuckDecoder.CB_TABLE_OFFSET)
+            return emitCB(opcode & 0xFF, need);
+
+        switch (opcode) {
+            case 0x00: // NOP
+                return 1;
+
+            // 8-bit loads
+            case 0x06: case 0x0E: case 0x16: case 0x1E:
+            case 0x26: case 0x2E: case 0x36: case 0x3E: // LD r,n
+                storeRegister(opcode >> 3, () -> push(low));
+                return 2;
+            case 0x02: case 0x12: // LD (BC),A and LD (DE),A
+                beginMemory();
+                loadPair(opcode >> 4);
+                iload(A);
+                writeMemory();
+                return 2;
+            case 0x0A: case 0x1A: // LD A,(BC) and LD A,(DE)
+                beginMemory();
+                loadPair(opcode >> 4);
+                readMemory();
+                istore(A);
+                return 2;
+            case 0x22: case 0x32: // LD (HL+),A and LD (HL-),A
+                beginMemory();
+                loadPair(2);
+                iload(A);
+                writeMemory();
+                loadPair(2);
+                push(opcode == 0x22 ? 1 : -1);
+                op(IADD);
+                storePair(2);
+                return 2;
+            case 0x2A: case 0x3A: // LD A,(HL+) and LD A,(HL-)
+                beginMemory();
+                loadPair(2);
+                readMemory();
+                istore(A);
+                loadPair(2);
+                push(opcode == 0x2A ? 1 : -1);
+                op(IADD);
+                storePair(2);
+                return 2;
+            case 0xE0: // LDH (n),A
+                beginMemory();
+                push(0xFF00 | low);
+                iload(A);
+                writeMemory();
+                return 3;
+            case 0xF0: // LDH A,(n)
+                beginMemory();
+                push(0xFF00 | low);
+                readMemory();
+                istore(A);
+                return 3;
+            case 0xE2: // LD (C),A
+                beginMemory();
+                iload(C);
+                orConstant(0xFF00);
+                iload(A);
+                writeMemory();
+                return 2;
+            case 0xF2: // LD A,(C)
+                beginMemory();
+                iload(C);
+                orConstant(0xFF00);
+                readMemory();
+                istore(A);
+                return 2;
+            case 0xEA: // LD (nn),A
+                beginMemory();
+                push((high << 8) | low);
+                iload(A);
+                writeMemory();
+                return 4;
+            case 0xFA: // LD A,(nn)
+                beginMemory();
+                push((high << 8) | low);
+                readMemory();
+                istore(A);
+                return 4;
+
+            // 16-bit loads and stack
+            case 0x01: case 0x11: case 0x21: case 0x31: // LD rr,nn
+                if (opcode == 0x31) {
+                    push((high << 8) | low);
+                    istore(SP);
+                } else {
+                    push(high);
+                    istore(PAIR_HIGH[opcode >> 4]);
+                    push(low);
+                    istore(PAIR_LOW[opcode >> 4]);
+                }
+                return 3;
+            case 0x08: // LD (nn),SP
+                beginMemory();
+                push((high << 8) | low);
+                iload(SP);
+                andConstant(0xFF);
+                writeMemory();
+                beginMemory();
+                push(((high << 8) | low) + 1);
+                iload(SP);
+                shiftRight(8);
+                andConstant(0xFF);
+                writeMemory();
+                return 5;
+            case 0xF9: // LD SP,HL
+                loadPair(2);
+                istore(SP);
+                return 2;
+            case 0xF8: // LD HL,SP+e
+                iload(SP);
+                push((byte) low);
+                op(IADD);
+                storePair(2);
+                stackOffsetFlags(need, low);
+                return 3;
+            case 0xE8: // ADD SP,e
+                stackOffsetFlags(need, low);
+                iload(SP);
+                push((byte) low);
+                op(IADD);
+                andConstant(0xFFFF);
+                istore(SP);
+                return 4;
+            case 0xC5: case 0xD5: case 0xE5: case 0xF5: // PUSH rr
+                if (opcode == 0xF5) {
+                    iload(A);
+                    shiftLeft(8);
+                    iload(F);
+                    andConstant(0xF0);
+                    op(IOR);
+                } else {
+                    loadPair((opcode >> 4) & 0x03);
+                }
+                istore(T0);
+                pushWord(T0);
+                return 4;
+            case 0xC1: case 0xD1: case 0xE1: case 0xF1: // POP rr
+                popWord();
+                if (opcode == 0xF1) {
+                    iload(T1);
+                    shiftRight(8);
+                    istore(A);
+                    iload(T1);
+                    andConstant(0xF0);
+                    istore(F);
+                } else {
+                    iload(T1);
+                    storePair((opcode >> 4) & 0x03);
+                }
+                return 3;
+
+            // 8-bit arithmetic and logic
+            case 0x04: case 0x0C: case 0x14: case 0x1C:
+            case 0x24: case 0x2C: case 0x34: case 0x3C: // INC r
+            case 0x05: case 0x0D: case 0x15: case 0x1D:
+            case 0x25: case 0x2D: case 0x35: case 0x3D: { // DEC r
+                boolean decrement = (opcode & 0x01) != 0;
+                loadRegister(opcode >> 3);
+                istore(T1);
+                iload(T1);
+                push(decrement ? -1 : 1);
+                op(IADD);
+                istore(T0);
+                if (beginFlags(need)) {
+                    if ((need & FLAG_Z) != 0) {
+                        iload(T0);
+                        zeroFlag();
+                    }
+                    if ((need & FLAG_H) != 0) {
+                        // Carry into, or borrow from, bit 4
+                        iload(T1);
+                        iload(T0);
+                        op(IXOR);
+                        andConstant(0x10);
+                        shiftLeft(1);
+                        op(IOR);
+                    }
+                    endFlags(need, decrement ? FLAG_N : 0);
+                }
+                storeRegister(opcode >> 3, () -> {
+                    iload(T0);
+                    andConstant(0xFF);
+                });
+                return 3;
+            }
+            case 0xC6: case 0xCE: case 0xD6: case 0xDE:
+            case 0xE6: case 0xEE: case 0xF6: case 0xFE: // ALU A,n
+                push(low);
+                alu(opcode >> 3, need);
+                return 2;
+            case 0x27: // DAA
+                iload(A);
+                iload(F);
+                invoke(INVOKESTATIC, SWITCH_CPU_CLASS, "decimalAdjust", "(II)I");
+                istore(T0);
+                iload(T0);
+                shiftRight(8);
+                istore(A);
+                iload(T0);
+                andConstant(0xFF);
+                istore(F);
+                return 1;
+            case 0x2F: // CPL
+                iload(A);
+                xorConstant(0xFF);
+                istore(A);
+                if (beginFlags(need))
+                    endFlags(need, FLAG_N | FLAG_H);
+                return 1;
+            case 0x37: // SCF
+                if (beginFlags(need))
+                    endFlags(need, FLAG_C);
+                return 1;
+            case 0x3F: // CCF
+                if ((need & (FLAG_N | FLAG_H)) != 0) {
+                    iload(F);
+                    andConstant(~(need & (FLAG_N | FLAG_H)));
+                    istore(F);
+                }
+                if ((need & FLAG_C) != 0) {
+                    iload(F);
+                    xorConstant(FLAG_C);
+                    istore(F);
+                }
+                return 1;
+
+            // 16-bit arithmetic
+            case 0x03: case 0x13: case 0x23: case 0x33: // INC rr
+            case 0x0B: case 0x1B: case 0x2B: case 0x3B: // DEC rr
+                loadPair(opcode >> 4);
+                push((opcode & 0x08) == 0 ? 1 : -1);
+                op(IADD);
+                storePair(opcode >> 4);
+                return 2;
+            case 0x09: case 0x19: case 0x29: case 0x39: // ADD HL,rr
+                loadPair(2);
+                istore(T2);
+                loadPair(opcode >> 4);
+                istore(T1);
+                iload(T2);
+                iload(T1);
+                op(IADD);
+                istore(T0);
+                iload(T0);
+                storePair(2);
+                if (beginFlags(need)) {
+                    if ((need & FLAG_H) != 0) {
+                        // Carry from bit 11
+                        iload(T2);
+                        andConstant(0x0FFF);
+                        iload(T1);
+                        andConstant(0x0FFF);
+                        op(IADD);
+                        shiftRight(7);
+                        andConstant(FLAG_H);
+                        op(IOR);
+                    }
+                    if ((need & FLAG_C) != 0) {
+                        // Carry from bit 15
+                        iload(T0);
+                        shiftRight(12);
+                        andConstant(FLAG_C);
+                        op(IOR);
+                    }
+                    endFlags(need, 0);
+                }
+                return 2;
+
+            // Rotates on the accumulator, which always clear Z
+            case 0x07: case 0x0F: case 0x17: case 0x1F:
+                iload(A);
+                istore(T1);
+                shiftResult(opcode >> 3);
+                if (beginFlags(need)) {
+                    if ((need & FLAG_C) != 0) {
+                        shiftCarry(opcode >> 3);
+                        op(IOR);
+                    }
+                    endFlags(need, 0);
+                }
+                iload(T0);
+                istore(A);
+                return 2;
+
+            // Control flow
+            case 0xC3: // JP nn
+                exitTo((high << 8) | low, cycles + 4);
+                return -1;
+            case 0xE9: // JP HL
+                loadPair(2);
+                exitToStack(cycles + 1);
+                return -1;
+            case 0xC2: case 0xCA: case 0xD2: case 0xDA: { // JP cc,nn
+                int notTaken = newLabel();
+                branchUnless(opcode >> 3, notTaken);
+                exitTo((high << 8) | low, cycles + 4);
+                bind(notTaken);
+                exitTo(nextPc, cycles + 3);
+                return -1;
+            }
+            case 0x18: // JR e
+                exitTo((nextPc + (byte) low) & 0xFFFF, cycles + 3);
+                return -1;
+            case 0x20: case 0x28: case 0x30: case 0x38: { // JR cc,e
+                int notTaken = newLabel();
+                branchUnless(opcode >> 3, notTaken);
+                exitTo((nextPc + (byte) low) & 0xFFFF, cycles + 3);
+                bind(notTaken);
+                exitTo(nextPc, cycles + 2);
+                return -1;
+            }
+            case 0xCD: // CALL nn
+                push(nextPc);
+                istore(T0);
+                pushWord(T0);
+                exitTo((high << 8) | low, cycles + 6);
+                return -1;
+            case 0xC4: case 0xCC: case 0xD4: case 0xDC: { // CALL cc,nn
+                int notTaken = newLabel();
+                branchUnless(opcode >> 3, notTaken);
+                push(nextPc);
+                istore(T0);
+                pushWord(T0);
+                exitTo((high << 8) | low, cycles + 6);
+                bind(notTaken);
+                exitTo(nextPc, cycles + 3);
+                return -1;
+            }
+            case 0xC9: // RET
+                popWord();
+                iload(T1);
+                exitToStack(cycles + 4);
+                return -1;
+            case 0xC0: case 0xC8: case 0xD0: case 0xD8: { // RET cc
+                int notTaken = newLabel();
+                branchUnless(opcode >> 3, notTaken);
+                popWord();
+                iload(T1);
+                exitToStack(cycles + 5);
+                bind(notTaken);
+                exitTo(nextPc, cycles + 2);
+                return -1;
+            }
+            case 0xD9: // RETI
+                popWord();
+                op(ALOAD_1);
+                push(1);
+                invoke(INVOKEVIRTUAL, CPU_CLASS, "setInterruptMasterEnable", "(Z)V");
+                iload(T1);
+                exitToStack(cycles + 4);
+                return -1;
+            case 0xC7: case 0xCF: case 0xD7: case 0xDF:
+            case 0xE7: case 0xEF: case 0xF7: case 0xFF: // RST n
+                push(nextPc);
+                istore(T0);
+                pushWord(T0);
+                exitTo(opcode & 0x38, cycles + 4);
+                return -1;
+
+            // Misc
+            case 0x10: // STOP
+                op(ALOAD_1);
+                push(1);
+                invoke(INVOKEVIRTUAL, CPU_CLASS, "setStopped", "(Z)V");
+                return 1;
+            case 0xF3: case 0xFB: // DI and EI
+                op(ALOAD_1);
+                push(opcode == 0xFB ? 1 : 0);
+                invoke(INVOKEVIRTUAL, CPU_CLASS, "setInterruptEnable", "(Z)V");
+                return 1;
+
+            default:
+                if (opcode >= 0x40 && opcode <= 0x7F) {
+                    // LD r,r' (0x76 is matched by this pattern in DuckDecoder too)
+                    storeRegister(opcode >> 3, () -> loadRegister(opcode));
+                    return 1;
+                }
+                if (opcode >= 0x80 && opcode <= 0xBF) {
+                    // ALU A,r (AND/XOR/OR keep the 2-cycle count of Bitwise)
+                    loadRegister(opcode);
+                    alu(opcode >> 3, need);
+                    return (opcode >= 0xA0 && opcode <= 0xB7) ? 2 : 1;
+                }
+                throw new IllegalArgumentException("Unknown opcode: " + Integer.toHexString(opcode));
+        }
+    }
+
+    /**
+     * Emits a CB-prefixed instruction.
+     *
+     * @param opcode The opcode following the 0xCB prefix
+     * @param need   The flags it writes that can be read later
+     * @return The M-cycles it uses
+     * @throws IOException Never thrown by the in-memory streams
+     */
+    private int emitCB(int opcode, int need) throws IOException {
+        int index = opcode & 0x07;
+        int bit = (opcode >> 3) & 0x07;
+        loadRegister(index);
+        istore(T1);
+        switch (opcode >> 6) {
+            case 0: // Rotates, shifts and SWAP
+                shiftResult(bit);
+                if (beginFlags(need)) {
+                    if ((need & FLAG_Z) != 0) {
+                        iload(T0);
+                        zeroFlag();
+                    }
+                    if ((need & FLAG_C) != 0 && bit != 6) {
+                        shiftCarry(bit);
+                        op(IOR);
+                    }
+                    endFlags(need, 0);
+                }
+                storeRegister(index, () -> iload(T0));
+                break;
+            case 1: // BIT b,r
+                if (beginFlags(need)) {
+                    if ((need & FLAG_Z) != 0) {
+                        iload(T1);
+                        shiftRight(bit);
+                        andConstant(1);
+                        xorConstant(1);
+                        shiftLeft(7);
+                        op(IOR);
+                    }
+                    endFlags(need, FLAG_H);
+                }
+                break;
+            case 2: // RES b,r
+                storeRegister(index, () -> {
+                    iload(T1);
+                    andConstant(~(1 << bit) & 0xFF);
+                });
+                break;
+            default: // SET b,r
+                storeRegister(index, () -> {
+                    iload(T1);
+                    orConstant(1 << bit);
+                });
+                break;
+        }
+        return 2;
+    }
+
+    /**
+     * Emits one of the eight accumulator ALU operations, with its operand on
+     * the stack.
+     *
+     * @param operation The operation index from bits 3-5 of the opcode
+     * @param need      The flags it writes that can be read later
+     * @throws IOException Never thrown by the in-memory streams
+     */
+    private void alu(int operation, int need) throws IOException {
+        operation &= 0x07;
+        istore(T1);
+        switch (operation) {
+            case 0: // ADD
+            case 1: // ADC
+            case 2: // SUB
+            case 3: // SBC
+            case 7: { // CP
+                boolean subtract = operation >= 2;
+                iload(A);
+                iload(T1);
+                op(subtract ? ISUB : IADD);
+                if (operation == 1 || operation == 3) {
+                    iload(F);
+                    shiftRight(4);
+                    andConstant(1);
+                    op(subtract ? ISUB : IADD);
+                }
+                istore(T0);
+                if (beginFlags(need)) {
+                    if ((need & FLAG_Z) != 0) {
+                        iload(T0);
+                        zeroFlag();
+                    }
+                    if ((need & FLAG_H) != 0) {
+                        // Carry into, or borrow from, bit 4
+                        iload(A);
+                        iload(T1);
+                        op(IXOR);
+                        iload(T0);
+                        op(IXOR);
+                        andConstant(0x10);
+                        shiftLeft(1);
+                        op(IOR);
+                    }
+                    if ((need & FLAG_C) != 0) {
+                        // Bit 8 of the unmasked result
+                        iload(T0);
+                        shiftRight(4);
+                        andConstant(FLAG_C);
+                        op(IOR);
+                    }
+                    endFlags(need, subtract ? FLAG_N : 0);
+                }
+                if (operation != 7) {
+                    iload(T0);
+                    andConstant(0xFF);
+                    istore(A);
+                }
+                break;
+            }
+            default: // AND, XOR, OR
+                iload(A);
+                iload(T1);
+                op(operation == 4 ? IAND : operation == 5 ? IXOR : IOR);
+                istore(A);
+                if (beginFlags(need)) {
+                    if ((need & FLAG_Z) != 0) {
+                        iload(A);
+                        zeroFlag();
+                    }
+                    endFlags(need, operation == 4 ? FLAG_H : 0);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Emits the result of a rotate, shift or SWAP of the value in T1 and
+     * stores it in T0.
+     *
+     * @param kind RLC, RRC, RL, RR, SLA, SRA, SWAP or SRL, as numbered in bits
+     *             3-5 of the CB opcode
+     */
+    private void shiftResult(int kind) {
+        iload(T1);
+        switch (kind & 0x07) {
+            case 0: // RLC
+                shiftLeft(1);
+                iload(T1);
+                shiftRight(7);
+                op(IOR);
+                andConstant(0xFF);
+                break;
+            case 1: // RRC
+                shiftRight(1);
+                iload(T1);
+                shiftLeft(7);
+                op(IOR);
+                andConstant(0xFF);
+                break;
+            case 2: // RL
+                shiftLeft(1);
+                iload(F);
+                shiftRight(4);
+                andConstant(1);
+                op(IOR);
+                andConstant(0xFF);
+                break;
+            case 3: // RR
+                shiftRight(1);
+                iload(F);
+                andConstant(FLAG_C);
+                shiftLeft(3);
+                op(IOR);
+                break;
+            case 4: // SLA
+                shiftLeft(1);
+                andConstant(0xFF);
+                break;
+            case 5: // SRA
+                shiftRight(1);
+                iload(T1);
+                andConstant(0x80);
+                op(IOR);
+                break;
+            case 6: // SWAP
+                andConstant(0x0F);
+                shiftLeft(4);
+                iload(T1);
+                shiftRight(4);
+                op(IOR);
+                break;
+            default: // SRL
+                shiftRight(1);
+                break;
+        }
+        istore(T0);
+    }
+
+    /**
+     * Emits the carry flag of a rotate or shift of the value in T1: bit 7 for
+     * left shifts and bit 0 for right shifts, moved to bit 4.
+     *
+     * @param kind The shift, numbered as for {@link #shiftResult(int)}
+     */
+    private void shiftCarry(int kind) {
+        iload(T1);
+        if (kind == 0 || kind == 2 || kind == 4) {
+            shiftRight(3);
+            andConstant(FLAG_C);
+        } else {
+            andConstant(1);
+            shiftLeft(4);
+        }
+    }
+
+    /**
+     * Emits the flags of ADD SP,e and LD HL,SP+e: Z and N clear, H and C from
+     * adding the unsigned offset to the low byte of SP.
+     *
+     * @param need   The flags that can be read later
+     * @param offset The offset byte
+     */
+    private void stackOffsetFlags(int need, int offset) {
+        if (!beginFlags(need))
+            return;
+        if ((need & FLAG_H) != 0) {
+            iload(SP);
+            andConstant(0x0F);
+            push(offset & 0x0F);
+            op(IADD);
+            shiftLeft(1);
+            andConstant(FLAG_H);
+            op(IOR);
+        }
+        if ((need & FLAG_C) != 0) {
+            iload(SP);
+            andConstant(0xFF);
+            push(offset);
+            op(IADD);
+            shiftRight(4);
+            andConstant(FLAG_C);
+            op(IOR);
+        }
+        endFlags(need, 0);
+    }
+
+    /**
+     * Starts updating the flags by pushing F with the flags to be written
+     * cleared. The caller ORs in the flags it works out and calls
+     * {@link #endFlags(int, int)}.
+     *
+     * @param need The flags to write
+     * @return False if there are none, in which case nothing was emitted
+     */
+    private boolean beginFlags(int need) {
+        if (need == 0)
+            return false;
+        iload(F);
+        andConstant(~need);
+        return true;
+    }
+
+    /**
+     * Finishes updating the flags, setting the given ones that are needed.
+     *
+     * @param need The flags being written
+     * @param set  The flags the instruction always sets
+     */
+    private void endFlags(int need, int set) {
+        if ((need & set) != 0)
+            orConstant(need & set);
+        istore(F);
+    }
+
+    /**
+     * Pops a value and ORs the zero flag into the flags below it on the stack
+     * if its low byte is zero, without branching.
+     */
+    private void zeroFlag() {
+        andConstant(0xFF);
+        push(-1);
+        op(IADD);
+        push(31);
+        op(IUSHR);
+        shiftLeft(7);
+        op(IOR);
+    }
+
+    /**
+     * Emits a jump to the given label unless a branch condition holds.
+     *
+     * @param code  The condition code in bits 3-4 of the opcode (NZ, Z, NC, C)
+     * @param label The label to jump to when the branch is not taken
+     */
+    private void branchUnless(int code, int label) {
+        iload(F);
+        andConstant((code & 0x02) == 0 ? FLAG_Z : FLAG_C);
+        branch((code & 0x01) == 0 ? IFNE : IFEQ, label);
+    }
+
+    /**
+     * Leaves the block for a known address.
+     *
+     * @param pc     The address to continue at
+     * @param cycles The M-cycles used by the block
+     */
+    private void exitTo(int pc, int cycles) {
+        push(pc);
+        exitToStack(cycles);
+    }
+
+    /**
+     * Leaves the block for the address on the stack.
+     *
+     * @param cycles The M-cycles used by the block
+     */
+    private void exitToStack(int cycles) {
+        istore(PC);
+        push(cycles);
+        istore(CYCLES);
+        branch(GOTO, exit);
+    }
+
+    /**
+     * Pushes an 8-bit register by its 3-bit opcode index, reading the byte at
+     * HL for index 6.
+     *
+     * @param index The register index (only the low 3 bits are used)
+     */
+    private void loadRegister(int index) {
+        if ((index & 0x07) == 6) {
+            beginMemory();
+            loadPair(2);
+            readMemory();
+        } else {
+            iload(REGISTER_SLOTS[index & 0x07]);
+        }
+    }
+
+    /**
+     * Stores an 8-bit value in a register by its 3-bit opcode index, writing
+     * the byte at HL for index 6.
+     *
+     * @param index The register index (only the low 3 bits are used)
+     * @param value Emits the value, which must already be 8 bits
+     */
+    private void storeRegister(int index, Runnable value) {
+        if ((index & 0x07) == 6) {
+            beginMemory();
+            loadPair(2);
+            value.run();
+            writeMemory();
+        } else {
+            value.run();
+            istore(REGISTER_SLOTS[index & 0x07]);
+        }
+    }
+
+    /**
+     * Pushes a 16-bit register pair by its 2-bit opcode index (BC, DE, HL,
+     * SP).
+     *
+     * @param index The pair index (only the low 2 bits are used)
+     */
+    private void loadPair(int index) {
+        index &= 0x03;
+        if (index == 3) {
+            iload(SP);
+            return;
+        }
+        iload(PAIR_HIGH[index]);
+        shiftLeft(8);
+        iload(PAIR_LOW[index]);
+        op(IOR);
+    }
+
+    /**
+     * Stores the value on the stack in a register pair by its 2-bit opcode
+     * index (BC, DE, HL, SP), masked to 16 bits.
+     *
+     * @param index The pair index (only the low 2 bits are used)
+     */
+    private void storePair(int index) {
+        index &= 0x03;
+        if (index == 3) {
+            andConstant(0xFFFF);
+            istore(SP);
+            return;
+        }
+        istore(PAIR);
+        iload(PAIR);
+        shiftRight(8);
+        andConstant(0xFF);
+        istore(PAIR_HIGH[index]);
+        iload(PAIR);
+        andConstant(0xFF);
+        istore(PAIR_LOW[index]);
+    }
+
+    /**
+     * Pushes a 16-bit value onto the stack, high byte first.
+     *
+     * @param slot The local holding the value
+     */
+    private void pushWord(int slot) {
+        for (int shift = 8; shift >= 0; shift -= 8) {
+            iload(SP);
+            push(-1);
+            op(IADD);
+            andConstant(0xFFFF);
+            istore(SP);
+            beginMemory();
+            iload(SP);
+            iload(slot);
+            if (shift != 0)
+                shiftRight(shift);
+            andConstant(0xFF);
+            writeMemory();
+        }
+    }
+
+    /**
+     * Pops a 16-bit value from the stack, low byte first, into T1.
+     */
+    private void popWord() {
+        beginMemory();
+        iload(SP);
+        readMemory();
+        istore(T0);
+        beginMemory();
+        iload(SP);
+        push(1);
+        op(IADD);
+        readMemory();
+        shiftLeft(8);
+        iload(T0);
+        op(IOR);
+        istore(T1);
+        iload(SP);
+        push(2);
+        op(IADD);
+        andConstant(0xFFFF);
+        istore(SP);
+    }
+
+    /**
+     * Pushes the memory reference for a following read or write.
+     */
+    private void beginMemory() {
+        usesMemory = true;
+        op(ALOAD);
+        u1(MEMORY);
+    }
+
+    /**
+     * Reads the byte at the address on the stack.
+     */
+    private void readMemory() {
+        invoke(INVOKEVIRTUAL, MEMORY_CLASS, "read", "(I)I");
+    }
+
+    /**
+     * Writes the value on the stack to the address below it.
+     */
+    private void writeMemory() {
+        invoke(INVOKEVIRTUAL, MEMORY_CLASS, "write", "(II)V");
+    }
+
+    private void iload(int slot) {
+        if (slot <= F)
+            used[slot] = true;
+        op(ILOAD);
+        u1(slot);
+    }
+
+    private void istore(int slot) {
+        if (slot <= F) {
+            used[slot] = true;
+            written[slot] = true;
+        }
+        op(ISTORE);
+        u1(slot);
+    }
+
+    /**
+     * Pushes an integer constant with the shortest instruction that holds it.
+     *
+     * @param value The constant
+     */
+    private void push(int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value);
+        } else if (value == (byte) value) {
+            op(BIPUSH);
+            u1(value);
+        } else if (value == (short) value) {
+            op(SIPUSH);
+            u2(value);
+        } else {
+            op(LDC_W);
+            u2(integerConstant(value));
+        }
+    }
+
+    private void andConstant(int value) {
+        push(value);
+        op(IAND);
+    }
+
+    private void orConstant(int value) {
+        push(value);
+        op(IOR);
+    }
+
+    private void xorConstant(int value) {
+        push(value);
+        op(IXOR);
+    }
+
+    private void shiftLeft(int bits) {
+        push(bits);
+        op(ISHL);
+    }
+
+    private void shiftRight(int bits) {
+        push(bits);
+        op(ISHR);
+    }
+
+    private void invoke(int opcode, String owner, String name, String type) {
+        op(opcode);
+        u2(memberConstant(CONSTANT_METHODREF, owner, name, type));
+    }
+
+    private int newLabel() {
+        labels.add(-1);
+        return labels.size() - 1;
+    }
+
+    private void bind(int label) {
+        labels.set(label, length);
+    }
+
+    /**
+     * Emits a branch to a label, patched once the code is complete.
+     *
+     * @param opcode The branch instruction
+     * @param label  The target label
+     */
+    private void branch(int opcode, int label) {
+        branches.add(new int[] { length, label });
+        op(opcode);
+        u2(0);
+    }
+
+    private void op(int opcode) {
+        u1(opcode);
+    }
+
+    private void u1(int value) {
+        if (length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+        code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    /**
+     * Writes a public method with a single Code attribute.
+     *
+     * @param out       The class file stream
+     * @param name      The name constant index
+     * @param type      The descriptor constant index
+     * @param codeName  The "Code" constant index
+     * @param maxStack  The maximum operand stack depth
+     * @param maxLocals The number of local variable slots
+     * @param code      The bytecode
+     * @throws IOException Never thrown by the in-memory streams
+     */
+    private void writeMethod(DataOutputStream out, int name, int type, int codeName, int maxStack, int maxLocals,
+            byte[] code) throws IOException {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+
+    /**
+     * Returns the index of a UTF-8 constant, adding it if needed.
+     *
+     * @param value The string
+     * @return The constant pool index
+     */
+    private int utf8Constant(String value) {
+        Integer index = constantIndices.get("U" + value);
+        if (index != null)
+            return index;
+        try {
+            constants.writeByte(CONSTANT_UTF8);
+            constants.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addConstant("U" + value);
+    }
+
+    /**
+     * Returns the index of an integer constant, adding it if needed.
+     *
+     * @param value The integer
+     * @return The constant pool index
+     */
+    private int integerConstant(int value) {
+        Integer index = constantIndices.get("I" + value);
+        if (index != null)
+            return index;
+        try {
+            constants.writeByte(CONSTANT_INTEGER);
+            constants.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addConstant("I" + value);
+    }
+
+    /**
+     * Returns the index of a class constant, adding it if needed.
+     *
+     * @param name The internal class name
+     * @return The constant pool index
+     */
+    private int classConstant(String name) {
+        Integer index = constantIndices.get("C" + name);
+        if (index != null)
+            return index;
+        int nameIndex = utf8Constant(name);
+        try {
+            constants.writeByte(CONSTANT_CLASS);
+            constants.writeShort(nameIndex);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addConstant("C" + name);
+    }
+
+    /**
+     * Returns the index of a field or method reference, adding it if needed.
+     *
+     * @param tag   The constant tag, either a field or a method reference
+     * @param owner The internal name of the owning class
+     * @param name  The member name
+     * @param type  The member descriptor
+     * @return The constant pool index
+     */
+    private int memberConstant(int tag, String owner, String name, String type) {
+        String key = "M" + owner + "." + name + type;
+        Integer index = constantIndices.get(key);
+        if (index != null)
+            return index;
+        int ownerIndex = classConstant(owner);
+        int nameIndex = utf8Constant(name);
+        int typeIndex = utf8Constant(type);
+        try {
+            constants.writeByte(CONSTANT_NAME_AND_TYPE);
+            constants.writeShort(nameIndex);
+            constants.writeShort(typeIndex);
+            int nameAndType = addConstant("N" + key);
+            constants.writeByte(tag);
+            constants.writeShort(ownerIndex);
+            constants.writeShort(nameAndType);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return addConstant(key);
+    }
+
+    /**
+     * Records the constant that was just written and returns its index.
+     *
+     * @param key The deduplication key
+     * @return The constant pool index
+     */
+    private int addConstant(String key) {
+        int index = constantCount++;
+        constantIndices.put(key, index);
+        return index;
+    }
+}
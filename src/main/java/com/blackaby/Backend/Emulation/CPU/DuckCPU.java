@@ -2,6 +2,7 @@ package com.blackaby.Backend.Emulation.CPU;
 
 import com.blackaby.Backend.Emulation.DuckEmulation;
 import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+import com.blackaby.Misc.Settings;
 
 /**
  * This class represents the CPU of the GameBoy.
@@ -11,6 +12,11 @@ import com.blackaby.Backend.Emulation.Memory.DuckMemory;
  * 
  * The instructions are implemented as methods in this class.
  * The CPU has a reference to the memory and the display.
+ * 
+ * With lazy flags enabled, ALU operations only record their operands and
+ * result. Z and C are worked out from the record when a condition is tested,
+ * and the whole F register is only built when something reads it (PUSH AF,
+ * DAA, a debugger) or changes a single flag.
  */
 public class DuckCPU {
 
@@ -283,21 +289,34 @@ public class DuckCPU {
     }
 
     // Registers
-    private int programCounter;
-    private int stackPointer;
+    protected int programCounter;
+    protected int stackPointer;
     private int flags;
-    private int accumulator;
-    private int registerB;
-    private int registerC;
-    private int registerD;
-    private int registerE;
-    private int registerH;
-    private int registerL;
+    protected int accumulator;
+    protected int registerB;
+    protected int registerC;
+    protected int registerD;
+    protected int registerE;
+    protected int registerH;
+    protected int registerL;
     private int instructionRegister;
     private boolean interruptMasterEnable;
     private int interruptMasterEnableCounter = 0;
 
-    private boolean haltBug = false;
+    protected boolean haltBug = false;
+
+    // Lazy flags: where the current Z/N/H/C come from
+    private static final int FLAGS_READY = 0; // the flags register is up to date
+    private static final int FLAGS_ADD = 1;
+    private static final int FLAGS_SUB = 2;
+    private static final int FLAGS_INC = 3;
+    private static final int FLAGS_DEC = 4;
+    private static final int FLAGS_RESULT = 5;
+    private final boolean lazyFlags;
+    private int flagSource = FLAGS_READY;
+    private int flagResult;
+    private int flagOperands;
+    private int flagExtra;
 
     private boolean isHalted = false;
     private boolean isStopped = false;
@@ -316,6 +335,7 @@ public class DuckCPU {
     public DuckCPU(DuckMemory memory, DuckEmulation emulation) {
         this.memory = memory;
         this.emulation = emulation;
+        this.lazyFlags = Settings.LAZY_FLAGS;
     }
 
     /**
@@ -365,6 +385,18 @@ public class DuckCPU {
             instruction.resetCycleCount();
             instruction.run();
         }
+        return completeInstruction(instruction.getCycleCount());
+    }
+
+    /**
+     * This method finishes an executed instruction: it advances the delayed
+     * interrupt enable from EI and services any pending interrupt.
+     * Shared by every CPU engine so that they all behave identically.
+     * 
+     * @param cycles The M-cycles used by the instruction
+     * @return The total M-cycles, including any interrupt dispatch
+     */
+    protected int completeInstruction(int cycles) {
         if (interruptMasterEnableCounter >= 2) {
             interruptMasterEnable = true;
             interruptMasterEnableCounter = 0;
@@ -372,7 +404,7 @@ public class DuckCPU {
             interruptMasterEnableCounter++;
         }
         // memory.printStack(stackPointer);
-        return instruction.getCycleCount() + (handleInterrupts() ? 5 : 0);
+        return cycles + (handleInterrupts() ? 5 : 0);
     }
 
     /**
@@ -385,7 +417,7 @@ public class DuckCPU {
         // A:00 F:11 B:22 C:33 D:44 E:55 H:66 L:77 PC:8888 SP:9999 PCMEM:AA,BB,CC,DD
         StringBuilder sb = new StringBuilder();
         sb.append("A:").append(String.format("%02X", accumulator)).append(" ");
-        sb.append("F:").append(String.format("%02X", flags)).append(" ");
+        sb.append("F:").append(String.format("%02X", getFlags())).append(" ");
         sb.append("B:").append(String.format("%02X", registerB)).append(" ");
         sb.append("C:").append(String.format("%02X", registerC)).append(" ");
         sb.append("D:").append(String.format("%02X", registerD)).append(" ");
@@ -415,7 +447,7 @@ public class DuckCPU {
                 accumulator = value;
                 break;
             case F:
-                flags = value;
+                setFlags(value);
                 break;
             case B:
                 registerB = value;
@@ -458,7 +490,7 @@ public class DuckCPU {
             case A:
                 return accumulator;
             case F:
-                return flags;
+                return getFlags();
             case B:
                 return registerB;
             case C:
@@ -499,7 +531,7 @@ public class DuckCPU {
             case HL:
                 return ((registerH & 0xFF) << 8) | (registerL & 0xFF);
             case AF:
-                return ((accumulator & 0xFF) << 8) | (flags & 0xFF);
+                return ((accumulator & 0xFF) << 8) | (getFlags() & 0xFF);
             default:
                 throw new IllegalArgumentException("Invalid 16-bit register: " + reg);
         }
@@ -534,7 +566,7 @@ public class DuckCPU {
                 break;
             case AF:
                 accumulator = (value >> 8) & 0xFF;
-                flags = value & 0xFF;
+                setFlags(value & 0xFF);
                 break;
             default:
                 throw new IllegalArgumentException("Invalid 16-bit register: " + reg);
@@ -637,7 +669,7 @@ public class DuckCPU {
      */
     public void setAF(int value) {
         accumulator = (value >> 8) & 0xFF;
-        flags = 0xFF & value;
+        setFlags(0xFF & value);
     }
 
     /**
@@ -713,6 +745,7 @@ public class DuckCPU {
      * @param value The value to set the flag to
      */
     public void setFlag(Flag flag, boolean value) {
+        materialiseFlags();
         if (value) {
             this.flags |= 1 << flag.getBit();
         } else {
@@ -727,7 +760,15 @@ public class DuckCPU {
      * @return The value of the flag as a boolean
      */
     public boolean getFlagBoolean(Flag flag) {
-        return (flags & (1 << flag.getBit())) != 0;
+        switch (flag) {
+            case Z:
+                return zeroFlag();
+            case C:
+                return carryFlag();
+            default:
+                materialiseFlags();
+                return (flags & (1 << flag.getBit())) != 0;
+        }
     }
 
     /**
@@ -736,11 +777,159 @@ public class DuckCPU {
      * @param flagsToClear The flags to deactivate
      */
     public void deactivateFlags(Flag... flagsToClear) {
+        materialiseFlags();
         for (Flag flag : flagsToClear) {
             this.flags &= ~(1 << flag.getBit());
         }
     }
 
+    /**
+     * This method gets the flags register, building it from the last
+     * recorded ALU operation if needed
+     * 
+     * @return The value of the flags register
+     */
+    protected int getFlags() {
+        materialiseFlags();
+        return flags;
+    }
+
+    /**
+     * This method sets the whole flags register, dropping any recorded ALU
+     * operation
+     * 
+     * @param value The value to set the flags register to
+     */
+    protected void setFlags(int value) {
+        flagSource = FLAGS_READY;
+        flags = value;
+    }
+
+    /**
+     * This method gets the zero flag without building the flags register
+     * 
+     * @return True if the zero flag is set
+     */
+    protected boolean zeroFlag() {
+        if (flagSource == FLAGS_READY)
+            return (flags & 0x80) != 0;
+        return (flagResult & 0xFF) == 0;
+    }
+
+    /**
+     * This method gets the carry flag without building the flags register
+     * 
+     * @return True if the carry flag is set
+     */
+    protected boolean carryFlag() {
+        switch (flagSource) {
+            case FLAGS_READY:
+                return (flags & 0x10) != 0;
+            case FLAGS_ADD:
+            case FLAGS_SUB:
+                return (flagResult & 0x100) != 0;
+            default:
+                return (flagExtra & 0x10) != 0;
+        }
+    }
+
+    /**
+     * This method records the flags of an 8-bit addition or subtraction
+     * (ADD, ADC, SUB, SBC, CP). Z comes from the low 8 bits of the result, H
+     * from the carry into bit 4, and C from bit 8 of the unmasked result.
+     * 
+     * @param a        The first operand
+     * @param b        The second operand
+     * @param result   The unmasked result, including any carry in
+     * @param subtract True for subtraction, which also sets N
+     */
+    public void setArithmeticFlags(int a, int b, int result, boolean subtract) {
+        flagSource = subtract ? FLAGS_SUB : FLAGS_ADD;
+        flagOperands = a ^ b;
+        flagResult = result;
+        if (!lazyFlags)
+            materialiseFlags();
+    }
+
+    /**
+     * This method records the flags of an 8-bit increment or decrement.
+     * Z, N and H follow the result and C is preserved.
+     * 
+     * @param value     The value before the operation
+     * @param result    The unmasked result
+     * @param decrement True for a decrement, which also sets N
+     */
+    public void setIncDecFlags(int value, int result, boolean decrement) {
+        flagExtra = carryFlag() ? 0x10 : 0;
+        flagSource = decrement ? FLAGS_DEC : FLAGS_INC;
+        flagOperands = value ^ 1;
+        flagResult = result;
+        if (!lazyFlags)
+            materialiseFlags();
+    }
+
+    /**
+     * This method records the flags of an operation that sets Z from its
+     * result and clears N (AND, OR, XOR, rotates, shifts and SWAP)
+     * 
+     * @param result    The 8-bit result
+     * @param halfCarry The value of the half carry flag
+     * @param carry     The value of the carry flag
+     */
+    public void setResultFlags(int result, boolean halfCarry, boolean carry) {
+        flagSource = FLAGS_RESULT;
+        flagExtra = (halfCarry ? 0x20 : 0) | (carry ? 0x10 : 0);
+        flagResult = result;
+        if (!lazyFlags)
+            materialiseFlags();
+    }
+
+    /**
+     * This method records the flags of an operation that clears Z, N and H
+     * and sets C (RLCA, RRCA, RLA and RRA)
+     * 
+     * @param carry The value of the carry flag
+     */
+    public void setCarryFlags(boolean carry) {
+        flagSource = FLAGS_RESULT;
+        flagExtra = carry ? 0x10 : 0;
+        // Any non-zero result, so Z reads as clear
+        flagResult = 1;
+        if (!lazyFlags)
+            materialiseFlags();
+    }
+
+    /**
+     * This method builds the flags register from the last recorded ALU
+     * operation, keeping the unused low nibble
+     */
+    private void materialiseFlags() {
+        int source = flagSource;
+        if (source == FLAGS_READY)
+            return;
+        int value = (flagResult & 0xFF) == 0 ? 0x80 : 0;
+        int halfCarry = ((flagOperands ^ flagResult) & 0x10) << 1;
+        switch (source) {
+            case FLAGS_ADD:
+                value |= halfCarry | ((flagResult >> 4) & 0x10);
+                break;
+            case FLAGS_SUB:
+                value |= 0x40 | halfCarry | ((flagResult >> 4) & 0x10);
+                break;
+            case FLAGS_INC:
+                value |= halfCarry | flagExtra;
+                break;
+            case FLAGS_DEC:
+                value |= 0x40 | halfCarry | flagExtra;
+                break;
+            default:
+                value |= flagExtra;
+                break;
+        }
+        flags = (flags & 0x0F) | value;
+        flagSource = FLAGS_READY;
+    }
+
     /**
      * This method requests an interrupt
      * 
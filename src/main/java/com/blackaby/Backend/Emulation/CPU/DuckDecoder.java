@@ -26,6 +26,10 @@ import com.blackaby.Backend.Emulation.CPU.Instructions.Math.Bitwise.BitwiseType;
  * instructions, determining an InstructionType from an opcode, and constructing
  * a fully configured Instruction instance from its opcode and operands.
  * </p>
+ * <p>
+ * All 256 base and 256 CB-prefixed opcodes are resolved once into dense
+ * dispatch tables, so decoding at run time is a single array index.
+ * </p>
  */
 public class DuckDecoder {
     /**
@@ -273,8 +277,29 @@ public class DuckDecoder {
         }
     }
 
+    /** Offset of the CB-prefixed half of the dispatch tables. */
+    public static final int CB_TABLE_OFFSET = 0x100;
+
+    /** Total number of entries in the dispatch tables (256 base + 256 CB). */
+    public static final int TABLE_SIZE = 0x200;
+
     private static Map<InstructionType, Instruction> instructionMap;
 
+    /** Resolved instruction type for every base and CB-prefixed opcode. */
+    private static final InstructionType[] typeTable = buildTypeTable();
+
+    /** Operand byte count for every opcode, or -1 for unknown opcodes. */
+    private static final int[] operandCountTable = buildOperandCountTable();
+
+    /** First opcode field extracted ahead of time for every opcode. */
+    private static final int[] firstValueTable = buildValueTable(0);
+
+    /** Second opcode field extracted ahead of time for every opcode. */
+    private static final int[] secondValueTable = buildValueTable(1);
+
+    /** Resolved handler for every opcode, built once the CPU exists. */
+    private static Instruction[] instructionTable;
+
     /**
      * Initialises the instruction map by associating each InstructionType with its
      * corresponding Instruction instance.
@@ -463,6 +488,107 @@ public class DuckDecoder {
         instructionMap.put(InstructionType.DISABLE_INTERRUPTS, new InterruptControl(cpu, memory, false));
         instructionMap.put(InstructionType.ENABLE_INTERRUPTS, new InterruptControl(cpu, memory, true));
         instructionMap.put(InstructionType.NOP, new Nop(cpu, memory));
+
+        instructionTable = new Instruction[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            if (typeTable[i] != null) {
+                instructionTable[i] = instructionMap.get(typeTable[i]);
+            }
+        }
+    }
+
+    /**
+     * Builds the opcode to InstructionType table by running the pattern match
+     * once for every opcode. The first matching type wins, exactly as in a linear
+     * scan of the enum.
+     *
+     * @return A table of 512 entries, indexed by {@link #getTableIndex}.
+     */
+    private static InstructionType[] buildTypeTable() {
+        InstructionType[] table = new InstructionType[TABLE_SIZE];
+        InstructionType[] types = InstructionType.values();
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            boolean isCB = i >= CB_TABLE_OFFSET;
+            int opcode = i & 0xFF;
+            for (InstructionType type : types) {
+                if (isCB == type.cbStatus && type.matches(opcode)) {
+                    table[i] = type;
+                    break;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Builds the operand count table from the resolved instruction types.
+     *
+     * @return A table of 512 operand counts, with -1 marking unknown opcodes.
+     */
+    private static int[] buildOperandCountTable() {
+        int[] table = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            table[i] = typeTable[i] == null ? -1 : typeTable[i].getOperandCount();
+        }
+        return table;
+    }
+
+    /**
+     * Builds a table holding one opcode field (register, bit position,
+     * condition) for every opcode, so it never has to be extracted at run time.
+     *
+     * @param position Which extracted value to store (0 or 1).
+     * @return A table of 512 values, 0 where the opcode has no such field.
+     */
+    private static int[] buildValueTable(int position) {
+        int[] table = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            if (typeTable[i] != null) {
+                int[] values = typeTable[i].getValues(i & 0xFF);
+                if (position < values.length) {
+                    table[i] = values[position] & 0xFF;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Returns the dispatch table index for an opcode.
+     *
+     * @param opcode The 8-bit opcode.
+     * @param isCB   True if the opcode is CB-prefixed.
+     * @return The index into the dispatch tables (0-511).
+     */
+    public static int getTableIndex(int opcode, boolean isCB) {
+        return (isCB ? CB_TABLE_OFFSET : 0) | (opcode & 0xFF);
+    }
+
+    /**
+     * Returns the number of operand bytes that follow the opcode at the given
+     * table index.
+     *
+     * @param index The dispatch table index.
+     * @return The operand count, or -1 if the opcode is unknown.
+     */
+    public static int getOperandCount(int index) {
+        return operandCountTable[index];
+    }
+
+    /**
+     * Returns the handler for the given table index, configured with its
+     * pre-extracted opcode fields and the supplied operand bytes. Nothing is
+     * allocated on this path.
+     *
+     * @param index         The dispatch table index.
+     * @param firstOperand  The first operand byte (or 0 if none).
+     * @param secondOperand The second operand byte (or 0 if none).
+     * @return A fully configured Instruction instance ready for execution.
+     */
+    public static Instruction decode(int index, int firstOperand, int secondOperand) {
+        Instruction instruction = instructionTable[index];
+        instruction.setValues(firstValueTable[index], secondValueTable[index], firstOperand, secondOperand);
+        return instruction;
     }
 
     /**
@@ -473,13 +599,7 @@ public class DuckDecoder {
      * @return The matching InstructionType, or null if no match is found.
      */
     public static InstructionType getType(int opcode, boolean isCB) {
-        opcode &= 0xFF;
-        for (InstructionType type : InstructionType.values()) {
-            if (isCB == type.cbStatus && type.matches(opcode)) {
-                return type;
-            }
-        }
-        return null;
+        return typeTable[getTableIndex(opcode, isCB)];
     }
 
     /**
@@ -496,7 +616,11 @@ public class DuckDecoder {
         Instruction instruction = instructionMap.get(instructionType);
         int extractedValues[] = instructionType.getValues(opcode);
 
-        instruction.setValues(extractedValues, operands);
+        instruction.setValues(
+                extractedValues.length > 0 ? extractedValues[0] : 0,
+                extractedValues.length > 1 ? extractedValues[1] : 0,
+                operands.length > 0 ? operands[0] : 0,
+                operands.length > 1 ? operands[1] : 0);
         return instruction;
     }
 }
\ No newline at end of file
@@ -1,10 +1,12 @@
 package com.blackaby.Backend.Emulation.CPU;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
+import com.blackaby.Backend.Emulation.DuckScheduler;
 import com.blackaby.Backend.Emulation.CPU.DuckCPU.Interrupt;
-import com.blackaby.Backend.Emulation.Graphics.GBColor;
+import com.blackaby.Backend.Emulation.Graphics.BackgroundPlane;
+import com.blackaby.Backend.Emulation.Graphics.SpriteIndex;
+import com.blackaby.Backend.Emulation.Graphics.TileCache;
 import com.blackaby.Backend.Emulation.Memory.DuckMemory;
 import com.blackaby.Backend.Emulation.Misc.Specifics;
 import com.blackaby.Frontend.DuckDisplay;
@@ -20,11 +22,20 @@ import com.blackaby.Frontend.DebugLogger;
  * display buffer. It also handles STAT and VBLANK interrupt generation.
  * </p>
  * <p>
- * Currently supports background rendering only. Window and sprite rendering
- * can be added later.
+ * The PPU runs lazily. It remembers the cycle of its next mode change and
+ * only catches up, rendering the scanlines finished on the way, when the CPU
+ * touches an LCD register, VRAM or OAM. The scheduler is only asked to wake
+ * it at boundaries that can raise an interrupt: VBLANK, which also ends the
+ * frame, and the HBLANK, OAM and LY=LYC boundaries enabled in STAT.
+ * </p>
+ * <p>
+ * Each scanline is drawn when the PPU leaves VRAM mode. The background and
+ * window are copied out of {@link BackgroundPlane}s built from cached, decoded
+ * tiles, mapped through the BGP lookup table, and the line's sprites are drawn
+ * over them.
  * </p>
  */
-public class DuckPPU {
+public class DuckPPU implements DuckScheduler.EventHandler {
 
     /** Duration (in cycles) of the OAM scanline phase. */
     public static final int OAM_DURATION = 80;
@@ -38,6 +49,10 @@ public class DuckPPU {
     /** Total number of cycles per scanline. */
     private static final int SCANLINE_CYCLES = 456;
 
+    private static final int VISIBLE_LINES = 144;
+    private static final int LINES_PER_FRAME = 154;
+    private static final int FRAME_CYCLES = SCANLINE_CYCLES * LINES_PER_FRAME;
+
     /**
      * Represents the current mode of the PPU.
      * Each mode corresponds to a specific phase in the LCD scanline timing:
@@ -56,233 +71,482 @@ public class DuckPPU {
     private DuckCPU cpu;
     private DuckMemory memory;
     private DuckDisplay display;
+    private DuckScheduler scheduler;
     private PPUMode mode;
     private int scanline;
-    private int cycle;
+    private boolean lcdEnabled;
+    private boolean coincidence;
+    private long frameStart;
+    private long nextTransition = DuckScheduler.IDLE;
+    private int statSelect;
+    private int lyc;
+    private Runnable frameListener;
+    private final TileCache tileCache;
+    private final BackgroundPlane background;
+    private final BackgroundPlane window;
+    private final SpriteIndex sprites;
+    // The window's own line counter, which only advances on lines it is drawn
+    private int windowLine;
+    private boolean windowReached;
+    // Colour indices of the background and window on the line being drawn,
+    // which sprites behind the background are checked against
+    private final byte[] lineIndices = new byte[Specifics.GB_DISPLAY_WIDTH];
+    // Pixels of the line already taken by a sprite with higher priority
+    private final boolean[] spriteTaken = new boolean[Specifics.GB_DISPLAY_WIDTH];
+
+    // Colour index to packed RGB for each palette register, rebuilt when the
+    // register is written or the screen colours change
+    private int[] shades = Settings.getShades();
+    private int[] bgPalette = buildPalette(0);
+    private int[] objPalette0 = buildPalette(0);
+    private int[] objPalette1 = buildPalette(0);
 
     /**
      * Constructor for the DuckPPU class.
+     * The PPU stays idle until the LCD is switched on through LCDC.
      *
-     * @param cpu     the DuckCPU object
-     * @param memory  the DuckMemory object
-     * @param display the DuckDisplay object
+     * @param cpu       the DuckCPU object
+     * @param memory    the DuckMemory object
+     * @param display   the DuckDisplay object
+     * @param scheduler the scheduler to book interrupt boundaries with; the
+     *                  caller registers the PPU as its PPU event handler and
+     *                  then calls {@link #registerIOHandlers()}
      */
-    public DuckPPU(DuckCPU cpu, DuckMemory memory, DuckDisplay display) {
+    public DuckPPU(DuckCPU cpu, DuckMemory memory, DuckDisplay display, DuckScheduler scheduler) {
         this.cpu = cpu;
         this.memory = memory;
         this.display = display;
+        this.scheduler = scheduler;
         this.scanline = 0;
-        this.cycle = 0;
-        this.mode = PPUMode.OAM;
+        this.mode = PPUMode.HBLANK;
+        this.lcdEnabled = false;
+        this.tileCache = new TileCache(memory);
+        this.background = new BackgroundPlane(memory, tileCache);
+        this.window = new BackgroundPlane(memory, tileCache);
+        this.sprites = new SpriteIndex(memory);
+    }
 
+    /**
+     * Routes accesses to the LCD registers through the PPU, so it catches up
+     * before they are read or changed.
+     */
+    public void registerIOHandlers() {
+        for (int address = DuckMemory.LCDC; address <= DuckMemory.WX; address++) {
+            if (address != DuckMemory.DMA)
+                memory.setIOHandlers(address, null, this::writeRegister);
+        }
+        memory.setIOHandlers(DuckMemory.LY, this::readRegister, this::writeRegister);
+        memory.setIOHandlers(DuckMemory.STAT, this::readRegister, this::writeRegister);
     }
 
     /**
-     * Sets the PPU mode and updates STAT register accordingly.
+     * Handles a CPU read of LY or STAT, which have to be current.
+     *
+     * @param address The register address
+     * @return The register value
      */
-    private void setMode(PPUMode mode) {
-        this.mode = mode;
-        int stat = memory.read(0xFF41) & 0xFF;
+    private int readRegister(int address) {
+        sync();
+        return memory.getIORegister(address);
+    }
+
+    /**
+     * Handles a CPU write to an LCD register, drawing what is due before the
+     * PPU's inputs change.
+     *
+     * @param address The register address
+     * @param value   The value written
+     */
+    private void writeRegister(int address, int value) {
+        sync();
+        switch (address) {
+            case DuckMemory.LY:
+                break; // read-only
+            case DuckMemory.STAT:
+                // Mode and coincidence bits are read-only
+                memory.setIORegister(address, (value & 0xF8) | (memory.getIORegister(address) & 0x07));
+                onSTATWrite(value);
+                break;
+            case DuckMemory.LCDC:
+                memory.setIORegister(address, value);
+                onLCDCWrite(value);
+                break;
+            case DuckMemory.LYC:
+                memory.setIORegister(address, value);
+                onLYCWrite(value);
+                break;
+            case DuckMemory.BGP:
+                memory.setIORegister(address, value);
+                bgPalette = buildPalette(value);
+                break;
+            case DuckMemory.OBP0:
+                memory.setIORegister(address, value);
+                objPalette0 = buildPalette(value);
+                break;
+            case DuckMemory.OBP1:
+                memory.setIORegister(address, value);
+                objPalette1 = buildPalette(value);
+                break;
+            default:
+                memory.setIORegister(address, value);
+                break;
+        }
+    }
+
+    /**
+     * Maps each colour index through a palette register to its packed RGB
+     * shade.
+     *
+     * @param palette The BGP, OBP0 or OBP1 value
+     * @return The four colours, by colour index
+     */
+    private int[] buildPalette(int palette) {
+        int[] colors = new int[4];
+        for (int index = 0; index < 4; index++)
+            colors[index] = shades[(palette >> (index * 2)) & 0x03];
+        return colors;
+    }
+
+    /**
+     * Rebuilds the palettes if the screen colours were changed in the options
+     * since the last scanline.
+     */
+    private void refreshShades() {
+        int[] current = Settings.getShades();
+        if (current == shades)
+            return;
+        shades = current;
+        bgPalette = buildPalette(memory.readFromPPU(DuckMemory.BGP));
+        objPalette0 = buildPalette(memory.readFromPPU(DuckMemory.OBP0));
+        objPalette1 = buildPalette(memory.readFromPPU(DuckMemory.OBP1));
+    }
+
+    /**
+     * Called by memory after the CPU writes VRAM, so changed tiles are decoded
+     * again before they are next drawn.
+     *
+     * @param address The address written
+     */
+    public void onVRAMWrite(int address) {
+        tileCache.invalidate(address);
+        background.invalidate(address);
+        window.invalidate(address);
+    }
 
-        stat = (stat & 0xFC) | mode.ordinal();
-        memory.write(0xFF41, (byte) stat);
+    /**
+     * Called by memory after OAM is written by the CPU or by DMA, so the
+     * sprite lists are rebuilt before the next line is drawn.
+     */
+    public void onOAMWrite() {
+        sprites.invalidate();
+    }
+
+    /**
+     * Sets the callback run once per frame when the PPU enters VBLANK.
+     *
+     * @param frameListener The callback, or null for none
+     */
+    public void setFrameListener(Runnable frameListener) {
+        this.frameListener = frameListener;
+    }
 
+    /**
+     * Sets the PPU mode and requests a STAT interrupt if that mode's source is
+     * enabled.
+     */
+    private void setMode(PPUMode mode) {
+        this.mode = mode;
         if (mode != PPUMode.VRAM) { // VRAM mode never generates STAT interrupts
             int enableBit = 3 + mode.ordinal(); // HBLANK=3, VBLANK=4, OAM=5
-            if ((stat & (1 << enableBit)) != 0) {
+            if ((statSelect & (1 << enableBit)) != 0) {
                 cpu.requestInterrupt(Interrupt.LCD_STAT);
             }
         }
     }
 
     /**
-     * Steps the PPU by one cycle, advancing mode/scanline as needed.
+     * Brings the PPU up to the current cycle, running every mode change that
+     * has fallen due since the last sync and rendering the scanlines they
+     * finish. Memory calls this before the CPU reads LY or STAT and before it
+     * writes an LCD register, VRAM or OAM, so each scanline is drawn from the
+     * state it would have seen.
      */
-    public void step() {
-        int lcdc = memory.read(DuckMemory.LCDC) & 0xFF;
-
-        // LCD disabled: freeze timing + reset LY/mode
-        if ((lcdc & 0x80) == 0) {
-            scanline = 0;
-            cycle = 0;
-            mode = PPUMode.HBLANK;
-            memory.write(DuckMemory.LY, 0);
+    public void sync() {
+        long now = scheduler.now();
+        if (now < nextTransition)
             return;
-        }
-        cycle++;
+        while (nextTransition <= now)
+            nextTransition += transition();
+        publishRegisters();
+    }
+
+    /**
+     * Runs the mode change at {@code nextTransition}.
+     *
+     * @return The length of the mode entered, in cycles
+     */
+    private int transition() {
         switch (mode) {
             case OAM:
-                if (cycle >= OAM_DURATION) {
-                    cycle = 0;
-                    setMode(PPUMode.VRAM);
-                }
-                break;
+                setMode(PPUMode.VRAM);
+                return VRAM_DURATION;
             case VRAM:
-                if (cycle >= VRAM_DURATION) {
-                    cycle = 0;
-                    setMode(PPUMode.HBLANK);
-                    renderScanline(scanline);
-                }
-                break;
+                setMode(PPUMode.HBLANK);
+                renderScanline(scanline);
+                return HBLANK_DURATION;
             case HBLANK:
-                if (cycle >= HBLANK_DURATION) {
-                    cycle = 0;
-                    scanline++;
-                    if (scanline == 144) {
-                        setMode(PPUMode.VBLANK);
-                        cpu.requestInterrupt(Interrupt.VBLANK);
-                    } else {
-                        setMode(PPUMode.OAM);
-                    }
+                scanline++;
+                updateLYCCompare();
+                if (scanline == VISIBLE_LINES) {
+                    setMode(PPUMode.VBLANK);
+                    cpu.requestInterrupt(Interrupt.VBLANK);
+                    display.repaint();
+                    if (frameListener != null)
+                        frameListener.run();
+                    return SCANLINE_CYCLES;
                 }
-                break;
+                setMode(PPUMode.OAM);
+                return OAM_DURATION;
             case VBLANK:
-                if (cycle >= SCANLINE_CYCLES) {
-                    cycle = 0;
-                    scanline++;
-                    if (scanline >= 154) {
-                        scanline = 0;
-                        setMode(PPUMode.OAM);
-                    }
-                    display.repaint();
+            default:
+                scanline++;
+                if (scanline == LINES_PER_FRAME) {
+                    scanline = 0;
+                    updateLYCCompare();
+                    setMode(PPUMode.OAM);
+                    return OAM_DURATION;
                 }
-                break;
+                updateLYCCompare();
+                return SCANLINE_CYCLES;
         }
-        memory.write(DuckMemory.LY, (byte) scanline);
-        updateLYCCompare();
     }
 
     /**
-     * Renders the background layer of the specified scanline.
-     * (You could also add sprite rendering, window, etc.)
+     * Writes the current scanline to LY and the mode and coincidence flag to
+     * STAT.
      */
-    public void renderScanline(int scanline) {
-        int lcdc = memory.read(0xFF40) & 0xFF;
+    private void publishRegisters() {
+        memory.setLYFromPPU(scanline);
+        memory.setSTATFromPPU(statSelect | (coincidence ? 0x04 : 0) | mode.ordinal());
+    }
 
-        if ((lcdc & 0x01) == 0) {
-            GBColor defaultColor = new GBColor(255, 255, 255);
-            for (int x = 0; x < Specifics.GB_DISPLAY_WIDTH; x++) {
-                display.setPixel(x, scanline, defaultColor.toColor(), false);
-            }
+    /**
+     * Handles a write to LCDC. Switching the LCD off resets LY and the mode;
+     * switching it on starts a new frame at line 0.
+     *
+     * @param lcdc The value written
+     */
+    public void onLCDCWrite(int lcdc) {
+        boolean enabled = (lcdc & 0x80) != 0;
+        if (enabled == lcdEnabled)
+            return;
+        lcdEnabled = enabled;
+        scanline = 0;
+        if (enabled) {
+            frameStart = scheduler.now();
+            mode = PPUMode.OAM;
+            nextTransition = frameStart + OAM_DURATION;
+            updateLYCCompare();
+            publishRegisters();
+            scheduleNextEvent();
+        } else {
+            scheduler.cancel(DuckScheduler.EventType.PPU);
+            nextTransition = DuckScheduler.IDLE;
+            mode = PPUMode.HBLANK;
+            coincidence = false;
+            publishRegisters();
         }
+    }
 
-        // Get scroll offsets.
-        int scrollY = memory.read(0xFF42) & 0xFF;
-        int scrollX = memory.read(0xFF43) & 0xFF;
-
-        // World position in the BG map:
-        int worldY = (scanline + scrollY) & 0xFF;
-
-        // Determine base addresses for tile map and tile data.
-        int tileMapBase = ((lcdc & 0x08) != 0) ? 0x9C00 : 0x9800;
-        boolean use8000 = ((lcdc & 0x10) != 0);
-        int tileDataBase = use8000 ? 0x8000 : 0x9000;
+    /**
+     * Handles a write to STAT. The interrupt sources it enables decide which
+     * boundaries need an event.
+     *
+     * @param stat The value written
+     */
+    public void onSTATWrite(int stat) {
+        statSelect = stat & 0xF8;
+        if (lcdEnabled)
+            scheduleNextEvent();
+    }
 
-        // BG palette.
-        int bgPalette = memory.read(0xFF47) & 0xFF;
+    /**
+     * Handles a write to LYC by repeating the LY=LYC comparison.
+     *
+     * @param value The value written
+     */
+    public void onLYCWrite(int value) {
+        lyc = value;
+        if (lcdEnabled) {
+            updateLYCCompare();
+            publishRegisters();
+            scheduleNextEvent();
+        }
+    }
 
-        // For each pixel in the scanline:
-        for (int screenX = 0; screenX < Specifics.GB_DISPLAY_WIDTH; screenX++) {
-            int worldX = (screenX + scrollX) & 0xFF;
-            int tileColumn = worldX / 8;
-            int tileRow = worldY / 8;
+    /**
+     * Catches up to an interrupt boundary and schedules the next one.
+     *
+     * @param time The cycle of the boundary
+     */
+    @Override
+    public void handleEvent(long time) {
+        sync();
+        scheduleNextEvent();
+    }
 
-            // Find the tile ID in the BG map.
-            int tileIndexAddr = tileMapBase + (tileRow * 32) + tileColumn;
-            int tileID = memory.read(tileIndexAddr) & 0xFF;
+    /**
+     * Schedules an event for the next boundary that can raise an interrupt:
+     * the start of VBLANK, which also ends the frame, and the HBLANK, OAM and
+     * LY=LYC boundaries whose STAT sources are enabled. Mode changes in
+     * between are left for {@link #sync()} to catch up on.
+     */
+    private void scheduleNextEvent() {
+        long now = scheduler.now();
+        long next = nextAt(now, VISIBLE_LINES, 0);
+        if ((statSelect & 0x08) != 0)
+            next = Math.min(next, nextVisibleDot(now, OAM_DURATION + VRAM_DURATION));
+        if ((statSelect & 0x20) != 0)
+            next = Math.min(next, nextVisibleDot(now, 0));
+        if ((statSelect & 0x40) != 0 && lyc < LINES_PER_FRAME)
+            next = Math.min(next, nextAt(now, lyc, 0));
+        scheduler.schedule(DuckScheduler.EventType.PPU, next);
+    }
 
-            if (!use8000) {
-                tileID = (byte) tileID;
-            }
+    /**
+     * Returns the first cycle after the given one at which the frame reaches
+     * the given line and dot.
+     *
+     * @param after The cycle to search from
+     * @param line  The scanline
+     * @param dot   The cycle within the scanline
+     * @return The cycle of the next match
+     */
+    private long nextAt(long after, int line, int dot) {
+        int position = (int) Math.floorMod(after - frameStart, (long) FRAME_CYCLES);
+        int delta = Math.floorMod(line * SCANLINE_CYCLES + dot - position, FRAME_CYCLES);
+        return after + (delta == 0 ? FRAME_CYCLES : delta);
+    }
 
-            // Each tile is 16 bytes, 2 bytes per row.
-            int tileAddr = tileDataBase + (tileID * 16);
-            int tileLine = worldY % 8;
-
-            int byte1 = memory.read(tileAddr + (tileLine * 2)) & 0xFF;
-            int byte2 = memory.read(tileAddr + (tileLine * 2 + 1)) & 0xFF;
-            int bitIndex = 7 - (worldX % 8);
-
-            int colorValue = (((byte2 >> bitIndex) & 1) << 1) |
-                    ((byte1 >> bitIndex) & 1);
-
-            // Convert that color index using the BG palette.
-            int paletteShift = colorValue * 2;
-            int paletteBits = (bgPalette >> paletteShift) & 0x03;
-
-            GBColor pixelColor;
-            switch (paletteBits) {
-                case 0:
-                    pixelColor = Settings.GB_COLOR_0_OBJ;
-                    break;
-                case 1:
-                    pixelColor = Settings.GB_COLOR_1_OBJ;
-                    break;
-                case 2:
-                    pixelColor = Settings.GB_COLOR_2_OBJ;
-                    break;
-                case 3:
-                default:
-                    pixelColor = Settings.GB_COLOR_3_OBJ;
-                    break;
-            }
+    /**
+     * Returns the first cycle after the given one at which any visible
+     * scanline reaches the given dot.
+     *
+     * @param after The cycle to search from
+     * @param dot   The cycle within the scanline
+     * @return The cycle of the next match
+     */
+    private long nextVisibleDot(long after, int dot) {
+        int position = (int) Math.floorMod(after - frameStart, (long) FRAME_CYCLES);
+        int line = position / SCANLINE_CYCLES;
+        int lineDot = position % SCANLINE_CYCLES;
+        if (line < VISIBLE_LINES && lineDot < dot)
+            return after + dot - lineDot;
+        if (line + 1 < VISIBLE_LINES)
+            return after + SCANLINE_CYCLES - lineDot + dot;
+        return nextAt(after, 0, dot);
+    }
 
-            // Write the pixel to the display buffer.
-            display.setPixel(screenX, scanline, pixelColor.toColor(), false);
+    /**
+     * Renders a scanline into the display: the background and window colour
+     * indices are mapped through BGP, then the sprites on the line are drawn
+     * over them. With LCDC bit 0 clear the background and window are blank,
+     * so the line shows shade 0 and no sprite is hidden behind them.
+     *
+     * @param scanline The line to draw, 0-143
+     */
+    public void renderScanline(int scanline) {
+        if (scanline < 0 || scanline >= Specifics.GB_DISPLAY_HEIGHT)
+            return;
+        // Pixels are stored straight into the display image, one row per line
+        int[] pixels = display.getPixels();
+        int lineStart = scanline * Specifics.GB_DISPLAY_WIDTH;
+        int lcdc = memory.readFromPPU(0xFF40) & 0xFF;
+        refreshShades();
+
+        // Copy the line's background and window colour indices out of their
+        // planes, then map them through BGP
+        if ((lcdc & 0x01) != 0) { // Bit 0: BG and window enable
+            int scrollY = memory.readFromPPU(0xFF42) & 0xFF;
+            int scrollX = memory.readFromPPU(0xFF43) & 0xFF;
+            int worldY = (scanline + scrollY) & 0xFF;
+            int mapBase = ((lcdc & 0x08) != 0) ? 0x9C00 : 0x9800;
+            background.copyLine(mapBase, (lcdc & 0x10) != 0, worldY, scrollX, lineIndices, 0,
+                    Specifics.GB_DISPLAY_WIDTH);
+        } else {
+            Arrays.fill(lineIndices, (byte) 0);
+        }
+        // Still called with bit 0 clear, to keep track of WY
+        drawWindow(scanline, lcdc);
+        for (int screenX = 0; screenX < Specifics.GB_DISPLAY_WIDTH; screenX++) {
+            pixels[lineStart + screenX] = bgPalette[lineIndices[screenX]];
         }
 
         if ((lcdc & 0x02) != 0) { // Bit 1: OBJ enable
-            for (DuckSprite sprite : getSpritesOnScanline(scanline)) {
-                drawSpritePixel(sprite, scanline);
+            int spriteHeight = ((lcdc & 0x04) != 0) ? 16 : 8;
+            sprites.refresh(spriteHeight);
+            // Highest priority first; each pixel goes to the first sprite
+            // with a colour there
+            Arrays.fill(spriteTaken, false);
+            int count = sprites.getCount(scanline);
+            for (int slot = 0; slot < count; slot++) {
+                drawSpriteRow(sprites.getSprite(scanline, slot), scanline, spriteHeight, pixels, lineStart);
             }
         }
     }
 
     /**
-     * Compares LY with LYC and sets the STAT register’s coincidence flag and
-     * interrupt.
+     * Copies the window over the background indices of a line. The window
+     * starts at WX - 7 once LY has matched WY in this frame, and its rows are
+     * counted separately, so lines where it is hidden do not use one up.
+     *
+     * @param scanline The line being drawn
+     * @param lcdc     The LCDC value
      */
-    private void updateLYCCompare() {
-        int ly = memory.read(DuckMemory.LY) & 0xFF;
-        int lyc = memory.read(0xFF45) & 0xFF;
-        int stat = memory.read(0xFF41) & 0xFF;
-
-        if (ly == lyc) {
-            stat |= 0x04;
-            if ((stat & 0x40) != 0) {
-                cpu.requestInterrupt(DuckCPU.Interrupt.LCD_STAT);
-            }
-        } else {
-            stat &= ~0x04;
+    private void drawWindow(int scanline, int lcdc) {
+        if (scanline == 0) {
+            windowLine = 0;
+            windowReached = false;
         }
-        memory.write(0xFF41, (byte) stat);
+        if (scanline == memory.readFromPPU(DuckMemory.WY))
+            windowReached = true;
+        // Bit 5: window enable; on the DMG, bit 0 clear hides the window too
+        if ((lcdc & 0x21) != 0x21 || !windowReached)
+            return;
+        int windowX = memory.readFromPPU(DuckMemory.WX) - 7;
+        if (windowX >= Specifics.GB_DISPLAY_WIDTH)
+            return;
+        int screenX = Math.max(windowX, 0);
+        int mapBase = ((lcdc & 0x40) != 0) ? 0x9C00 : 0x9800;
+        window.copyLine(mapBase, (lcdc & 0x10) != 0, windowLine, screenX - windowX, lineIndices, screenX,
+                Specifics.GB_DISPLAY_WIDTH - screenX);
+        windowLine++;
     }
 
-    private List<DuckSprite> getSpritesOnScanline(int scanline) {
-        List<DuckSprite> visible = new ArrayList<>();
-
-        boolean is8x16 = (memory.read(0xFF40) & 0x04) != 0;
-
-        for (int i = 0; i < 40; i++) {
-            int index = i * 4;
-            int y = (memory.read(0xFE00 + index) & 0xFF) - 16;
-            int x = (memory.read(0xFE00 + index + 1) & 0xFF) - 8;
-            int tileIndex = memory.read(0xFE00 + index + 2) & 0xFF;
-            int attr = memory.read(0xFE00 + index + 3) & 0xFF;
-
-            int height = is8x16 ? 16 : 8;
-            if (scanline >= y && scanline < y + height) {
-                visible.add(new DuckSprite(y, x, tileIndex, attr));
-                if (visible.size() == 10)
-                    break;
-            }
+    /**
+     * Compares LY with LYC and updates the coincidence flag shown in STAT.
+     * The interrupt is requested when the comparison becomes true.
+     */
+    private void updateLYCCompare() {
+        boolean match = scanline == lyc;
+        if (match && !coincidence && (statSelect & 0x40) != 0) {
+            cpu.requestInterrupt(DuckCPU.Interrupt.LCD_STAT);
         }
-
-        return visible;
+        coincidence = match;
     }
 
-    private void drawSpritePixel(DuckSprite sprite, int scanline) {
-        int spriteHeight = ((memory.read(0xFF40) & 0x04) != 0) ? 16 : 8;
+    /**
+     * Draws a sprite's row on a line. Pixels already taken by a sprite with
+     * higher priority are skipped, as are those of a sprite behind the
+     * background where the background or window is not colour 0.
+     *
+     * @param sprite       The sprite
+     * @param scanline     The line being drawn
+     * @param spriteHeight The sprite height, 8 or 16
+     * @param pixels       The display pixels
+     * @param lineStart    Where the line starts in the pixels
+     */
+    private void drawSpriteRow(DuckSprite sprite, int scanline, int spriteHeight, int[] pixels, int lineStart) {
         int line = scanline - sprite.y;
 
         if ((sprite.attributes & (1 << 6)) != 0) {
@@ -294,75 +558,25 @@ public class DuckPPU {
             tileIndex &= 0xFE;
         }
 
-        int addr = 0x8000 + (tileIndex * 16);
-        int byte1 = memory.read(addr + line * 2) & 0xFF;
-        int byte2 = memory.read(addr + line * 2 + 1) & 0xFF;
-
-        for (int x = 0; x < 8; x++) {
-            boolean xFlip = (sprite.attributes & (1 << 5)) != 0;
-            int bit = xFlip ? x : 7 - x;
-            int pixelX = sprite.x + (xFlip ? 7 - x : x);
-
-            if (pixelX < 0 || pixelX >= Specifics.GB_DISPLAY_WIDTH)
+        // A tall sprite's second tile follows its first in the cache
+        int row = tileCache.getRow(tileIndex + line / 8, line % 8);
+        byte[] tiles = (sprite.attributes & (1 << 5)) != 0 ? tileCache.getMirroredIndices()
+                : tileCache.getIndices();
+        int[] palette = (sprite.attributes & (1 << 4)) != 0 ? objPalette1 : objPalette0;
+        boolean behindBG = (sprite.attributes & (1 << 7)) != 0;
+
+        int first = Math.max(-sprite.x, 0);
+        int last = Math.min(Specifics.GB_DISPLAY_WIDTH - sprite.x, 8);
+        for (int x = first; x < last; x++) {
+            int colorIndex = tiles[row + x];
+            int pixelX = sprite.x + x;
+            if (colorIndex == 0 || spriteTaken[pixelX])
                 continue;
-
-            int colorIndex = ((byte2 >> bit) & 1) << 1 | ((byte1 >> bit) & 1);
-            if (colorIndex == 0)
+            // The pixel belongs to this sprite even where the background hides it
+            spriteTaken[pixelX] = true;
+            if (behindBG && lineIndices[pixelX] != 0)
                 continue;
-
-            int palette = (sprite.attributes & (1 << 4)) != 0
-                    ? memory.read(0xFF49) & 0xFF
-                    : memory.read(0xFF48) & 0xFF;
-            int paletteBits = (palette >> (colorIndex * 2)) & 0x03;
-
-            GBColor pixelColor;
-            switch (paletteBits) {
-                case 0:
-                    pixelColor = Settings.GB_COLOR_0_OBJ;
-                    break;
-                case 1:
-                    pixelColor = Settings.GB_COLOR_1_OBJ;
-                    break;
-                case 2:
-                    pixelColor = Settings.GB_COLOR_2_OBJ;
-                    break;
-                case 3:
-                default:
-                    pixelColor = Settings.GB_COLOR_3_OBJ;
-                    break;
-            }
-
-            boolean behindBG = (sprite.attributes & (1 << 7)) != 0;
-            if (behindBG) {
-                int lcdc = memory.read(0xFF40) & 0xFF;
-                int scrollX = memory.read(0xFF43) & 0xFF;
-                int scrollY = memory.read(0xFF42) & 0xFF;
-                int bgX = (pixelX + scrollX) & 0xFF;
-                int bgY = (scanline + scrollY) & 0xFF;
-                int tileMapBase = ((lcdc & 0x08) != 0) ? 0x9C00 : 0x9800;
-                boolean use8000 = (lcdc & 0x10) != 0;
-                int tileDataBase = use8000 ? 0x8000 : 0x9000;
-
-                int tileColumn = bgX / 8;
-                int tileRow = bgY / 8;
-                int tileIndexAddr = tileMapBase + tileRow * 32 + tileColumn;
-                int tileID = memory.read(tileIndexAddr) & 0xFF;
-                if (!use8000)
-                    tileID = (byte) tileID;
-
-                int tileAddr = tileDataBase + tileID * 16;
-                int tileLine = bgY % 8;
-                int bgByte1 = memory.read(tileAddr + tileLine * 2) & 0xFF;
-                int bgByte2 = memory.read(tileAddr + tileLine * 2 + 1) & 0xFF;
-                int bgBit = 7 - (bgX % 8);
-                int bgColorIndex = ((bgByte2 >> bgBit) & 1) << 1 | ((bgByte1 >> bgBit) & 1);
-
-                if (bgColorIndex != 0) {
-                    continue;
-                }
-            }
-
-            display.setPixel(pixelX, scanline, pixelColor.toColor(), false);
+            pixels[lineStart + pixelX] = palette[colorIndex];
         }
     }
 
@@ -0,0 +1,307 @@
+package com.blackaby.Backend.Emulation.CPU;
+
+import com.blackaby.Backend.Emulation.DuckEmulation;
+import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+
+/**
+ * An optional CPU engine that translates guest basic blocks to JVM bytecode.
+ * <p>
+ * The first time execution reaches an address, the engine decodes
+ * instructions from there until the first jump, call, return, restart,
+ * STOP, DI or EI (or {@link #MAX_BLOCK_LENGTH} instructions), and hands the
+ * block to {@link BlockCompiler}, which translates the instructions into the
+ * body of a JVM method with the registers held in locals. Later visits run the
+ * cached block in one call, so the fetch and decode work, the interrupt check
+ * and the hardware stepping happen once per block instead of once per
+ * instruction.
+ * </p>
+ * <p>
+ * Blocks are only built from ROM, work RAM and high RAM. ROM blocks in the
+ * switchable area are cached per bank, and blocks at 0x0000-0x3FFF are only
+ * used while bank 0 is mapped there. Writes to a RAM page holding compiled
+ * code discard the blocks on that page, and both such writes and bank
+ * switches end the running block after the current instruction, including
+ * blocks at 0x0000-0x3FFF when the controller can remap that area. Anything
+ * else falls back to the switch interpreter.
+ * </p>
+ */
+public class DuckRecompiler extends DuckSwitchCPU {
+
+    /**
+     * A compiled guest basic block.
+     */
+    public interface CompiledBlock {
+        /**
+         * Runs the block on the given CPU.
+         *
+         * @param cpu The CPU whose registers and memory the block works on
+         * @return The number of M-cycles consumed
+         */
+        int run(DuckRecompiler cpu);
+    }
+
+    /**
+     * A cached block and the guest address range it was built from.
+     */
+    private static final class Block {
+        private final CompiledBlock code;
+        private final int start;
+        private final int end;
+
+        private Block(CompiledBlock code, int start, int end) {
+            this.code = code;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static final int MAX_BLOCK_LENGTH = 32;
+    private static final int BANK_SIZE = 0x4000;
+    private static final int RAM_BASE = 0x8000;
+    private static final int PAGE_SHIFT = 8;
+
+    private static final boolean[] BASE_ENDS_BLOCK = new boolean[0x100];
+    private static final boolean[] BASE_WRITES_MEMORY = new boolean[0x100];
+
+    static {
+        int[] blockEnds = {
+                0x10, 0x18, 0x20, 0x28, 0x30, 0x38, 0x76, // STOP, JR, HALT
+                0xC0, 0xC2, 0xC3, 0xC4, 0xC7, 0xC8, 0xC9, 0xCA, 0xCC, 0xCD, 0xCF,
+                0xD0, 0xD2, 0xD4, 0xD7, 0xD8, 0xD9, 0xDA, 0xDC, 0xDF,
+                0xE7, 0xE9, 0xEF, 0xF3, 0xF7, 0xFB, 0xFF
+        };
+        for (int opcode : blockEnds)
+            BASE_ENDS_BLOCK[opcode] = true;
+
+        int[] memoryWrites = {
+                0x02, 0x08, 0x12, 0x22, 0x32, 0x34, 0x35, 0x36,
+                0xC5, 0xD5, 0xE0, 0xE2, 0xE5, 0xEA, 0xF5
+        };
+        for (int opcode : memoryWrites)
+            BASE_WRITES_MEMORY[opcode] = true;
+        for (int opcode = 0x70; opcode <= 0x77; opcode++)
+            BASE_WRITES_MEMORY[opcode] = true;
+    }
+
+    private final Block[] fixedBankBlocks = new Block[BANK_SIZE];
+    private Block[][] switchableBankBlocks = new Block[2][];
+    private final Block[] ramBlocks = new Block[0x10000 - RAM_BASE];
+    private final int[] pageBlockCounts = new int[0x100];
+
+    // Scratch space for decoding a block
+    private final int[] blockInstructions = new int[MAX_BLOCK_LENGTH];
+    private final int[] blockNextPcs = new int[MAX_BLOCK_LENGTH];
+    private final boolean[] blockAbortChecks = new boolean[MAX_BLOCK_LENGTH];
+
+    /**
+     * Set when the code behind the running block may have changed; checked by
+     * compiled blocks after instructions that write memory.
+     */
+    boolean blockAborted;
+
+    /**
+     * Constructs a recompiling CPU with the given memory and emulation
+     * references.
+     *
+     * @param memory    The memory reference
+     * @param emulation The emulation reference
+     */
+    public DuckRecompiler(DuckMemory memory, DuckEmulation emulation) {
+        super(memory, emulation);
+    }
+
+    /**
+     * Runs the block at the program counter, compiling it first if needed, then
+     * services interrupts. Falls back to a single interpreted instruction when
+     * no block can be built or OAM DMA is running.
+     *
+     * @return The number of M-cycles consumed
+     */
+    @Override
+    public int step() {
+        // Blocks read during OAM DMA would see the busy bus, not the code
+        if (haltBug || memory.isDMAActive())
+            return super.step();
+
+        int pc = programCounter;
+        Block block = findBlock(pc);
+        if (block == null) {
+            block = compileBlock(pc);
+            if (block == null)
+                return super.step();
+        }
+
+        blockAborted = false;
+        int cycles = block.code.run(this);
+        return completeInstruction(cycles);
+    }
+
+    /**
+     * Called by memory after a byte in the range 0x8000-0xFFFF is written.
+     * Discards compiled code on the written page.
+     *
+     * @param address The address written
+     */
+    public void onMemoryWrite(int address) {
+        int page = address >> PAGE_SHIFT;
+        if (pageBlockCounts[page] != 0)
+            invalidatePage(page);
+    }
+
+    /**
+     * Called by memory when the switchable ROM bank changes. Blocks are cached
+     * per bank, so only the running block needs to stop.
+     */
+    public void onBankSwitch() {
+        blockAborted = true;
+    }
+
+    /**
+     * Returns the cached block starting at the given address for the current
+     * memory state.
+     *
+     * @param pc The block start address
+     * @return The block, or null if none is cached
+     */
+    private Block findBlock(int pc) {
+        if (pc < BANK_SIZE)
+            return memory.getLowRomBank() == 0 ? fixedBankBlocks[pc] : null;
+        if (pc < RAM_BASE) {
+            int bank = memory.getRomBank();
+            if (bank >= switchableBankBlocks.length || switchableBankBlocks[bank] == null)
+                return null;
+            return switchableBankBlocks[bank][pc - BANK_SIZE];
+        }
+        return ramBlocks[pc - RAM_BASE];
+    }
+
+    /**
+     * Decodes and compiles the block starting at the given address and stores
+     * it in the cache.
+     *
+     * @param start The block start address
+     * @return The block, or null if the address cannot hold compiled code or
+     *         its first opcode is unknown
+     */
+    private Block compileBlock(int start) {
+        int regionEnd = regionEnd(start);
+        if (regionEnd < 0)
+            return null;
+        // Bank 0 code cannot change under itself unless the controller can
+        // remap the low bank
+        boolean checkWrites = start >= BANK_SIZE || memory.canRemapLowRomBank();
+
+        int pc = start;
+        int count = 0;
+        boolean endsBlock = false;
+        while (count < MAX_BLOCK_LENGTH && !endsBlock) {
+            int opcode = memory.read(pc);
+            int length = 1;
+            boolean isCB = opcode == 0xCB;
+            if (isCB) {
+                opcode = memory.read(pc + 1);
+                length = 2;
+            }
+            int operandCount = DuckDecoder.getOperandCount(DuckDecoder.getTableIndex(opcode, isCB));
+            length += Math.max(operandCount, 0);
+            if (operandCount < 0 || pc + length > regionEnd)
+                break;
+
+            int low = operandCount > 0 ? memory.read(pc + length - operandCount) : 0;
+            int high = operandCount > 1 ? memory.read(pc + length - 1) : 0;
+            boolean writesMemory;
+            if (isCB) {
+                blockInstructions[count] = DuckDecoder.CB_TABLE_OFFSET | opcode;
+                writesMemory = (opcode & 0x07) == 6 && (opcode < 0x40 || opcode > 0x7F);
+            } else {
+                blockInstructions[count] = opcode | (low << 9) | (high << 17);
+                writesMemory = BASE_WRITES_MEMORY[opcode];
+                endsBlock = BASE_ENDS_BLOCK[opcode];
+            }
+            pc += length;
+            blockNextPcs[count] = pc;
+            blockAbortChecks[count] = checkWrites && writesMemory;
+            count++;
+        }
+        if (count == 0)
+            return null;
+
+        // Halve blocks whose bytecode would be too long for the JIT
+        CompiledBlock code = BlockCompiler.compile(blockInstructions, blockNextPcs, blockAbortChecks, count);
+        while (code == null) {
+            count = (count + 1) / 2;
+            code = BlockCompiler.compile(blockInstructions, blockNextPcs, blockAbortChecks, count);
+        }
+        Block block = new Block(code, start, blockNextPcs[count - 1]);
+        storeBlock(block);
+        return block;
+    }
+
+    /**
+     * Returns the end of the memory region that a block starting at the given
+     * address must stay within.
+     *
+     * @param start The block start address
+     * @return The exclusive end address, or -1 if code there is not compiled
+     */
+    private int regionEnd(int start) {
+        if (start < BANK_SIZE)
+            return memory.getLowRomBank() == 0 ? BANK_SIZE : -1; // MBC1 can remap this area
+        if (start < RAM_BASE)
+            return RAM_BASE;
+        if (start >= DuckMemory.WORK_RAM_START && start <= DuckMemory.WORK_RAM_END)
+            return DuckMemory.WORK_RAM_END + 1;
+        if (start >= DuckMemory.HRAM_START && start <= DuckMemory.HRAM_END)
+            return DuckMemory.HRAM_END + 1;
+        return -1;
+    }
+
+    /**
+     * Stores a block in the cache for its address and, for RAM blocks, marks
+     * the pages it covers.
+     *
+     * @param block The block to store
+     */
+    private void storeBlock(Block block) {
+        if (block.start < BANK_SIZE) {
+            fixedBankBlocks[block.start] = block;
+        } else if (block.start < RAM_BASE) {
+            int bank = memory.getRomBank();
+            if (bank >= switchableBankBlocks.length) {
+                Block[][] grown = new Block[Math.max(bank + 1, switchableBankBlocks.length * 2)][];
+                System.arraycopy(switchableBankBlocks, 0, grown, 0, switchableBankBlocks.length);
+                switchableBankBlocks = grown;
+            }
+            if (switchableBankBlocks[bank] == null)
+                switchableBankBlocks[bank] = new Block[BANK_SIZE];
+            switchableBankBlocks[bank][block.start - BANK_SIZE] = block;
+        } else {
+            ramBlocks[block.start - RAM_BASE] = block;
+            for (int page = block.start >> PAGE_SHIFT; page <= (block.end - 1) >> PAGE_SHIFT; page++)
+                pageBlockCounts[page]++;
+        }
+    }
+
+    /**
+     * Discards every RAM block that covers the given page and ends the running
+     * block.
+     *
+     * @param page The page number (address >> 8)
+     */
+    private void invalidatePage(int page) {
+        blockAborted = true;
+        int pageStart = page << PAGE_SHIFT;
+        // Blocks are shorter than a page, so only blocks starting on this page
+        // or the one before can reach it
+        int from = Math.max(pageStart - (1 << PAGE_SHIFT), RAM_BASE);
+        int to = pageStart + (1 << PAGE_SHIFT);
+        for (int address = from; address < to; address++) {
+            Block block = ramBlocks[address - RAM_BASE];
+            if (block == null || block.end <= pageStart)
+                continue;
+            ramBlocks[address - RAM_BASE] = null;
+            for (int covered = block.start >> PAGE_SHIFT; covered <= (block.end - 1) >> PAGE_SHIFT; covered++)
+                pageBlockCounts[covered]--;
+        }
+    }
+}
@@ -0,0 +1,725 @@
+package com.blackaby.Backend.Emulation.CPU;
+
+import com.blackaby.Backend.Emulation.DuckEmulation;
+import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+
+/**
+ * An alternative CPU engine that interprets the whole SM83 instruction set in
+ * a single {@code switch} over the opcode.
+ * <p>
+ * Instead of decoding each opcode to an {@link Instruction} object and calling
+ * its {@code run()} method, this engine fetches the opcode and operands itself
+ * and works directly on the primitive register fields of {@link DuckCPU}. The
+ * results, flags and cycle counts match the classes in
+ * {@code CPU/Instructions}, including the way {@link DuckDecoder} resolves
+ * overlapping opcode patterns.
+ * </p>
+ * <p>
+ * Register indices follow the opcode encoding: 0=B, 1=C, 2=D, 3=E, 4=H, 5=L,
+ * 6=(HL), 7=A. Pair indices are 0=BC, 1=DE, 2=HL, 3=SP (or AF for PUSH/POP).
+ * </p>
+ */
+public class DuckSwitchCPU extends DuckCPU {
+
+    private static final int FLAG_Z = 0x80;
+    private static final int FLAG_N = 0x40;
+    private static final int FLAG_H = 0x20;
+    private static final int FLAG_C = 0x10;
+
+    /**
+     * Constructs a switch-based CPU with the given memory and emulation
+     * references.
+     *
+     * @param memory    The memory reference
+     * @param emulation The emulation reference
+     */
+    public DuckSwitchCPU(DuckMemory memory, DuckEmulation emulation) {
+        super(memory, emulation);
+    }
+
+    /**
+     * Fetches, decodes and executes a single instruction, then services
+     * interrupts.
+     *
+     * @return The number of M-cycles consumed
+     */
+    public int step() {
+        int pc = programCounter;
+        int opcode = memory.read(pc);
+        boolean isCB = false;
+        pc++;
+
+        if (opcode == 0xCB) {
+            opcode = memory.read(pc);
+            isCB = true;
+            pc++;
+        }
+
+        int operandCount = DuckDecoder.getOperandCount(DuckDecoder.getTableIndex(opcode, isCB));
+        if (operandCount < 0) {
+            System.err.println("Unknown Opcode: " + Integer.toHexString(opcode));
+            System.exit(1);
+        }
+        int low = 0;
+        int high = 0;
+        if (operandCount > 0) {
+            low = memory.read(pc);
+            if (operandCount > 1)
+                high = memory.read(pc + 1);
+            pc += operandCount;
+        }
+
+        if (!haltBug)
+            programCounter = pc & 0xFFFF;
+        else
+            haltBug = false;
+
+        int cycles = isCB ? executeCB(opcode) : executeBase(opcode, low, high);
+        return completeInstruction(cycles);
+    }
+
+    /**
+     * Executes an unprefixed opcode.
+     *
+     * @param opcode The opcode
+     * @param low    The first operand byte
+     * @param high   The second operand byte
+     * @return The number of M-cycles consumed
+     */
+    private int executeBase(int opcode, int low, int high) {
+        switch (opcode) {
+            case 0x00: // NOP
+                return 1;
+
+            // 8-bit loads
+            case 0x06: case 0x0E: case 0x16: case 0x1E:
+            case 0x26: case 0x2E: case 0x36: case 0x3E: // LD r,n
+                writeRegister(opcode >> 3, low);
+                return 2;
+            case 0x02: // LD (BC),A
+                memory.write(getBCValue(), accumulator);
+                return 2;
+            case 0x12: // LD (DE),A
+                memory.write(getDEValue(), accumulator);
+                return 2;
+            case 0x0A: // LD A,(BC)
+                accumulator = memory.read(getBCValue()) & 0xFF;
+                return 2;
+            case 0x1A: // LD A,(DE)
+                accumulator = memory.read(getDEValue()) & 0xFF;
+                return 2;
+            case 0x22: { // LD (HL+),A
+                int hl = getHLValue();
+                memory.write(hl, accumulator);
+                setHL(hl + 1);
+                return 2;
+            }
+            case 0x32: { // LD (HL-),A
+                int hl = getHLValue();
+                memory.write(hl, accumulator);
+                setHL(hl - 1);
+                return 2;
+            }
+            case 0x2A: { // LD A,(HL+)
+                int hl = getHLValue();
+                accumulator = memory.read(hl) & 0xFF;
+                setHL(hl + 1);
+                return 2;
+            }
+            case 0x3A: { // LD A,(HL-)
+                int hl = getHLValue();
+                accumulator = memory.read(hl) & 0xFF;
+                setHL(hl - 1);
+                return 2;
+            }
+            case 0xE0: // LDH (n),A
+                memory.write(0xFF00 | low, accumulator);
+                return 3;
+            case 0xF0: // LDH A,(n)
+                accumulator = memory.read(0xFF00 | low) & 0xFF;
+                return 3;
+            case 0xE2: // LD (C),A
+                memory.write(0xFF00 | registerC, accumulator);
+                return 2;
+            case 0xF2: // LD A,(C)
+                accumulator = memory.read(0xFF00 | registerC) & 0xFF;
+                return 2;
+            case 0xEA: // LD (nn),A
+                memory.write((high << 8) | low, accumulator);
+                return 4;
+            case 0xFA: // LD A,(nn)
+                accumulator = memory.read((high << 8) | low) & 0xFF;
+                return 4;
+
+            // 16-bit loads and stack
+            case 0x01: case 0x11: case 0x21: case 0x31: // LD rr,nn
+                writePair(opcode >> 4, (high << 8) | low);
+                return 3;
+            case 0x08: // LD (nn),SP
+                memory.write((high << 8) | low, stackPointer & 0xFF);
+                memory.write(((high << 8) | low) + 1, (stackPointer >> 8) & 0xFF);
+                return 5;
+            case 0xF9: // LD SP,HL
+                stackPointer = getHLValue();
+                return 2;
+            case 0xF8: { // LD HL,SP+e
+                int offset = (byte) low;
+                int sp = stackPointer;
+                setHL(sp + offset);
+                int newFlags = getFlags() & ~(FLAG_Z | FLAG_N | FLAG_H | FLAG_C);
+                if ((sp & 0xF) + (offset & 0xF) > 0xF)
+                    newFlags |= FLAG_H;
+                if ((sp & 0xFF) + (offset & 0xFF) > 0xFF)
+                    newFlags |= FLAG_C;
+                setFlags(newFlags);
+                return 3;
+            }
+            case 0xC5: case 0xD5: case 0xE5: case 0xF5: { // PUSH rr
+                int value = (opcode == 0xF5) ? getAFValue() & 0xFFF0 : readPair((opcode >> 4) & 0x03);
+                push(value);
+                return 4;
+            }
+            case 0xC1: case 0xD1: case 0xE1: case 0xF1: { // POP rr
+                int lsb = memory.read(stackPointer) & 0xFF;
+                int msb = memory.read(stackPointer + 1) & 0xFF;
+                stackPointer = (stackPointer + 2) & 0xFFFF;
+                if (opcode == 0xF1) {
+                    accumulator = msb;
+                    setFlags(lsb & 0xF0);
+                } else {
+                    writePair((opcode >> 4) & 0x03, (msb << 8) | lsb);
+                }
+                return 3;
+            }
+
+            // 8-bit arithmetic and logic
+            case 0x04: case 0x0C: case 0x14: case 0x1C:
+            case 0x24: case 0x2C: case 0x34: case 0x3C: { // INC r
+                int index = opcode >> 3;
+                writeRegister(index, increment(readRegister(index)));
+                return 3;
+            }
+            case 0x05: case 0x0D: case 0x15: case 0x1D:
+            case 0x25: case 0x2D: case 0x35: case 0x3D: { // DEC r
+                int index = opcode >> 3;
+                writeRegister(index, decrement(readRegister(index)));
+                return 3;
+            }
+            case 0xC6: case 0xCE: case 0xD6: case 0xDE:
+            case 0xE6: case 0xEE: case 0xF6: case 0xFE: // ALU A,n
+                alu(opcode >> 3, low);
+                return 2;
+            case 0x27: // DAA
+                decimalAdjust();
+                return 1;
+            case 0x2F: // CPL
+                accumulator = ~accumulator & 0xFF;
+                setFlags(getFlags() | FLAG_N | FLAG_H);
+                return 1;
+            case 0x37: // SCF
+                setFlags((getFlags() & ~(FLAG_N | FLAG_H)) | FLAG_C);
+                return 1;
+            case 0x3F: // CCF
+                setFlags((getFlags() & ~(FLAG_N | FLAG_H)) ^ FLAG_C);
+                return 1;
+
+            // 16-bit arithmetic
+            case 0x03: case 0x13: case 0x23: case 0x33: { // INC rr
+                int index = opcode >> 4;
+                writePair(index, readPair(index) + 1);
+                return 2;
+            }
+            case 0x0B: case 0x1B: case 0x2B: case 0x3B: { // DEC rr
+                int index = opcode >> 4;
+                writePair(index, readPair(index) - 1);
+                return 2;
+            }
+            case 0x09: case 0x19: case 0x29: case 0x39: { // ADD HL,rr
+                int hl = getHLValue();
+                int value = readPair(opcode >> 4);
+                setHL(hl + value);
+                int newFlags = getFlags() & ~(FLAG_N | FLAG_H | FLAG_C);
+                if ((hl & 0x0FFF) + (value & 0x0FFF) > 0x0FFF)
+                    newFlags |= FLAG_H;
+                if (hl + value > 0xFFFF)
+                    newFlags |= FLAG_C;
+                setFlags(newFlags);
+                return 2;
+            }
+            case 0xE8: { // ADD SP,e
+                int sp = stackPointer;
+                int newFlags = getFlags() & ~(FLAG_Z | FLAG_N | FLAG_H | FLAG_C);
+                if ((sp & 0x0F) + (low & 0x0F) > 0x0F)
+                    newFlags |= FLAG_H;
+                if ((sp & 0xFF) + low > 0xFF)
+                    newFlags |= FLAG_C;
+                stackPointer = (sp + (byte) low) & 0xFFFF;
+                setFlags(newFlags);
+                return 4;
+            }
+
+            // Rotates on the accumulator, which always clear Z and keep the
+            // carry the rotate recorded
+            case 0x07: // RLCA
+                accumulator = rotateLeftCircular(accumulator);
+                setCarryFlags(carryFlag());
+                return 2;
+            case 0x0F: // RRCA
+                accumulator = rotateRightCircular(accumulator);
+                setCarryFlags(carryFlag());
+                return 2;
+            case 0x17: // RLA
+                accumulator = rotateLeft(accumulator);
+                setCarryFlags(carryFlag());
+                return 2;
+            case 0x1F: // RRA
+                accumulator = rotateRight(accumulator);
+                setCarryFlags(carryFlag());
+                return 2;
+
+            // Control flow
+            case 0xC3: // JP nn
+                programCounter = (high << 8) | low;
+                return 4;
+            case 0xE9: // JP HL
+                programCounter = getHLValue();
+                return 1;
+            case 0xC2: case 0xCA: case 0xD2: case 0xDA: // JP cc,nn
+                if (!condition(opcode >> 3))
+                    return 3;
+                programCounter = (high << 8) | low;
+                return 4;
+            case 0x18: // JR e
+                programCounter = (programCounter + (byte) low) & 0xFFFF;
+                return 3;
+            case 0x20: case 0x28: case 0x30: case 0x38: // JR cc,e
+                if (!condition(opcode >> 3))
+                    return 2;
+                programCounter = (programCounter + (byte) low) & 0xFFFF;
+                return 3;
+            case 0xCD: // CALL nn
+                push(programCounter);
+                programCounter = (high << 8) | low;
+                return 6;
+            case 0xC4: case 0xCC: case 0xD4: case 0xDC: // CALL cc,nn
+                if (!condition(opcode >> 3))
+                    return 3;
+                push(programCounter);
+                programCounter = (high << 8) | low;
+                return 6;
+            case 0xC9: // RET
+                programCounter = pop();
+                return 4;
+            case 0xC0: case 0xC8: case 0xD0: case 0xD8: // RET cc
+                if (!condition(opcode >> 3))
+                    return 2;
+                programCounter = pop();
+                return 5;
+            case 0xD9: // RETI
+                programCounter = pop();
+                setInterruptMasterEnable(true);
+                return 4;
+            case 0xC7: case 0xCF: case 0xD7: case 0xDF:
+            case 0xE7: case 0xEF: case 0xF7: case 0xFF: // RST n
+                push(programCounter);
+                programCounter = opcode & 0x38;
+                return 4;
+
+            // Misc
+            case 0x10: // STOP
+                setStopped(true);
+                return 1;
+            case 0xF3: // DI
+                setInterruptEnable(false);
+                return 1;
+            case 0xFB: // EI
+                setInterruptEnable(true);
+                return 1;
+
+            default:
+                if (opcode >= 0x40 && opcode <= 0x7F) {
+                    // LD r,r' (0x76 is matched by this pattern in DuckDecoder too)
+                    writeRegister(opcode >> 3, readRegister(opcode));
+                    return 1;
+                }
+                if (opcode >= 0x80 && opcode <= 0xBF) {
+                    // ALU A,r (AND/XOR/OR keep the 2-cycle count of Bitwise)
+                    alu(opcode >> 3, readRegister(opcode));
+                    return (opcode >= 0xA0 && opcode <= 0xB7) ? 2 : 1;
+                }
+                throw new IllegalArgumentException("Unknown opcode: " + Integer.toHexString(opcode));
+        }
+    }
+
+    /**
+     * Executes a CB-prefixed opcode.
+     *
+     * @param opcode The opcode following the 0xCB prefix
+     * @return The number of M-cycles consumed
+     */
+    private int executeCB(int opcode) {
+        int index = opcode & 0x07;
+        int bit = (opcode >> 3) & 0x07;
+        int value = readRegister(index);
+        switch (opcode >> 6) {
+            case 0: {
+                int result;
+                switch (bit) {
+                    case 0:
+                        result = rotateLeftCircular(value);
+                        break;
+                    case 1:
+                        result = rotateRightCircular(value);
+                        break;
+                    case 2:
+                        result = rotateLeft(value);
+                        break;
+                    case 3:
+                        result = rotateRight(value);
+                        break;
+                    case 4: // SLA
+                        result = (value << 1) & 0xFF;
+                        setResultFlags(result, false, (value & 0x80) != 0);
+                        break;
+                    case 5: // SRA
+                        result = (value >> 1) | (value & 0x80);
+                        setResultFlags(result, false, (value & 0x01) != 0);
+                        break;
+                    case 6: // SWAP
+                        result = ((value & 0x0F) << 4) | ((value & 0xF0) >> 4);
+                        setResultFlags(result, false, false);
+                        break;
+                    default: // SRL
+                        result = value >>> 1;
+                        setResultFlags(result, false, (value & 0x01) != 0);
+                        break;
+                }
+                writeRegister(index, result);
+                return 2;
+            }
+            case 1: // BIT b,r
+                setFlags((getFlags() & ~(FLAG_Z | FLAG_N)) | FLAG_H | ((value & (1 << bit)) == 0 ? FLAG_Z : 0));
+                return 2;
+            case 2: // RES b,r
+                writeRegister(index, value & ~(1 << bit));
+                return 2;
+            default: // SET b,r
+                writeRegister(index, value | (1 << bit));
+                return 2;
+        }
+    }
+
+    /**
+     * Reads an 8-bit register by its 3-bit opcode index.
+     *
+     * @param index The register index (only the low 3 bits are used)
+     * @return The register value, or the byte at HL for index 6
+     */
+    private int readRegister(int index) {
+        switch (index & 0x07) {
+            case 0:
+                return registerB;
+            case 1:
+                return registerC;
+            case 2:
+                return registerD;
+            case 3:
+                return registerE;
+            case 4:
+                return registerH;
+            case 5:
+                return registerL;
+            case 6:
+                return memory.read(getHLValue()) & 0xFF;
+            default:
+                return accumulator;
+        }
+    }
+
+    /**
+     * Writes an 8-bit register by its 3-bit opcode index.
+     *
+     * @param index The register index (only the low 3 bits are used)
+     * @param value The value to write, masked to 8 bits
+     */
+    private void writeRegister(int index, int value) {
+        value &= 0xFF;
+        switch (index & 0x07) {
+            case 0:
+                registerB = value;
+                break;
+            case 1:
+                registerC = value;
+                break;
+            case 2:
+                registerD = value;
+                break;
+            case 3:
+                registerE = value;
+                break;
+            case 4:
+                registerH = value;
+                break;
+            case 5:
+                registerL = value;
+                break;
+            case 6:
+                memory.write(getHLValue(), value);
+                break;
+            default:
+                accumulator = value;
+                break;
+        }
+    }
+
+    /**
+     * Reads a 16-bit register pair by its 2-bit opcode index (BC, DE, HL, SP).
+     *
+     * @param index The pair index (only the low 2 bits are used)
+     * @return The 16-bit value
+     */
+    private int readPair(int index) {
+        switch (index & 0x03) {
+            case 0:
+                return getBCValue();
+            case 1:
+                return getDEValue();
+            case 2:
+                return getHLValue();
+            default:
+                return stackPointer;
+        }
+    }
+
+    /**
+     * Writes a 16-bit register pair by its 2-bit opcode index (BC, DE, HL, SP).
+     *
+     * @param index The pair index (only the low 2 bits are used)
+     * @param value The value to write, masked to 16 bits
+     */
+    private void writePair(int index, int value) {
+        switch (index & 0x03) {
+            case 0:
+                setBC(value);
+                break;
+            case 1:
+                setDE(value);
+                break;
+            case 2:
+                setHL(value);
+                break;
+            default:
+                stackPointer = value & 0xFFFF;
+                break;
+        }
+    }
+
+    /**
+     * Returns the AF pair without going through the register enum.
+     *
+     * @return The 16-bit AF value
+     */
+    private int getAFValue() {
+        return (accumulator << 8) | (getFlags() & 0xFF);
+    }
+
+    /**
+     * Pushes a 16-bit value onto the stack, high byte first.
+     *
+     * @param value The value to push
+     */
+    private void push(int value) {
+        stackPointer = (stackPointer - 1) & 0xFFFF;
+        memory.write(stackPointer, (value >> 8) & 0xFF);
+        stackPointer = (stackPointer - 1) & 0xFFFF;
+        memory.write(stackPointer, value & 0xFF);
+    }
+
+    /**
+     * Pops a 16-bit value from the stack, low byte first.
+     *
+     * @return The popped value
+     */
+    private int pop() {
+        int low = memory.read(stackPointer) & 0xFF;
+        int high = memory.read(stackPointer + 1) & 0xFF;
+        stackPointer = (stackPointer + 2) & 0xFFFF;
+        return (high << 8) | low;
+    }
+
+    /**
+     * Evaluates a branch condition encoded in bits 3-4 of the opcode.
+     *
+     * @param code The condition code (0=NZ, 1=Z, 2=NC, 3=C)
+     * @return True if the branch should be taken
+     */
+    private boolean condition(int code) {
+        switch (code & 0x03) {
+            case 0:
+                return !zeroFlag();
+            case 1:
+                return zeroFlag();
+            case 2:
+                return !carryFlag();
+            default:
+                return carryFlag();
+        }
+    }
+
+    /**
+     * Performs one of the eight accumulator ALU operations encoded in bits 3-5
+     * of the opcode (ADD, ADC, SUB, SBC, AND, XOR, OR, CP).
+     *
+     * @param operation The operation index
+     * @param value     The 8-bit operand
+     */
+    private void alu(int operation, int value) {
+        int a = accumulator;
+        switch (operation & 0x07) {
+            case 0: // ADD
+            case 1: { // ADC
+                int carry = (operation & 0x07) == 1 && carryFlag() ? 1 : 0;
+                int result = a + value + carry;
+                setArithmeticFlags(a, value, result, false);
+                accumulator = result & 0xFF;
+                break;
+            }
+            case 2: // SUB
+            case 3: // SBC
+            case 7: { // CP
+                int carry = (operation & 0x07) == 3 && carryFlag() ? 1 : 0;
+                int result = a - value - carry;
+                setArithmeticFlags(a, value, result, true);
+                if ((operation & 0x07) != 7)
+                    accumulator = result & 0xFF;
+                break;
+            }
+            case 4: // AND
+                accumulator = a & value;
+                setResultFlags(accumulator, true, false);
+                break;
+            case 5: // XOR
+                accumulator = (a ^ value) & 0xFF;
+                setResultFlags(accumulator, false, false);
+                break;
+            default: // OR
+                accumulator = (a | value) & 0xFF;
+                setResultFlags(accumulator, false, false);
+                break;
+        }
+    }
+
+    /**
+     * Increments an 8-bit value, updating Z, N and H (C is preserved).
+     *
+     * @param value The value to increment
+     * @return The incremented value
+     */
+    private int increment(int value) {
+        int result = value + 1;
+        setIncDecFlags(value, result, false);
+        return result & 0xFF;
+    }
+
+    /**
+     * Decrements an 8-bit value, updating Z, N and H (C is preserved).
+     *
+     * @param value The value to decrement
+     * @return The decremented value
+     */
+    private int decrement(int value) {
+        int result = value - 1;
+        setIncDecFlags(value, result, true);
+        return result & 0xFF;
+    }
+
+    /**
+     * RLC: rotates left, copying bit 7 into bit 0 and the carry flag.
+     * Sets Z from the result and clears N and H.
+     */
+    private int rotateLeftCircular(int value) {
+        int result = ((value << 1) | (value >> 7)) & 0xFF;
+        setRotateFlags(result, (value & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * RRC: rotates right, copying bit 0 into bit 7 and the carry flag.
+     * Sets Z from the result and clears N and H.
+     */
+    private int rotateRightCircular(int value) {
+        int result = ((value >> 1) | (value << 7)) & 0xFF;
+        setRotateFlags(result, (value & 0x01) != 0);
+        return result;
+    }
+
+    /**
+     * RL: rotates left through the carry flag.
+     * Sets Z from the result and clears N and H.
+     */
+    private int rotateLeft(int value) {
+        int result = ((value << 1) | (carryFlag() ? 1 : 0)) & 0xFF;
+        setRotateFlags(result, (value & 0x80) != 0);
+        return result;
+    }
+
+    /**
+     * RR: rotates right through the carry flag.
+     * Sets Z from the result and clears N and H.
+     */
+    private int rotateRight(int value) {
+        int result = ((value >> 1) | (carryFlag() ? 0x80 : 0)) & 0xFF;
+        setRotateFlags(result, (value & 0x01) != 0);
+        return result;
+    }
+
+    /**
+     * Sets the flags after a rotate: Z from the result, C from the bit shifted
+     * out, N and H cleared.
+     */
+    private void setRotateFlags(int result, boolean carry) {
+        setResultFlags(result, false, carry);
+    }
+
+    /**
+     * DAA: adjusts the accumulator to packed BCD after an addition or
+     * subtraction.
+     */
+    private void decimalAdjust() {
+        int result = decimalAdjust(accumulator, getFlags());
+        accumulator = result >> 8;
+        setFlags(result & 0xFF);
+    }
+
+    /**
+     * Works out the result of DAA. Shared with the blocks built by
+     * {@link BlockCompiler}, which keep the registers in locals.
+     *
+     * @param a     The accumulator
+     * @param flags The flags register
+     * @return The adjusted accumulator in bits 8-15 and the new flags in bits
+     *         0-7
+     */
+    static int decimalAdjust(int a, int flags) {
+        boolean carry = (flags & FLAG_C) != 0;
+        int correction = 0;
+        if ((flags & FLAG_N) != 0) {
+            if (carry)
+                correction += 0x60;
+            if ((flags & FLAG_H) != 0)
+                correction += 0x06;
+            a = (a - correction) & 0xFF;
+        } else {
+            if (carry || a > 0x99) {
+                correction += 0x60;
+                carry = true;
+            } else {
+                carry = false;
+            }
+            if ((flags & FLAG_H) != 0 || (a & 0x0F) > 0x09)
+                correction += 0x06;
+            a = (a + correction) & 0xFF;
+        }
+        return (a << 8) | (flags & ~(FLAG_Z | FLAG_H | FLAG_C) & 0xFF) | (a == 0 ? FLAG_Z : 0) | (carry ? FLAG_C : 0);
+    }
+}
@@ -22,14 +22,18 @@ public abstract class Instruction implements Runnable {
     /**
      * Values extracted from the opcode using the associated instruction mask(s).
      * Used to determine things like registers or bit positions.
+     * Instructions with a single opcode field only use {@code firstValue}.
      */
-    protected int[] opcodeValues;
+    protected int firstValue;
+    protected int secondValue;
 
     /**
-     * Raw operands fetched during instruction decoding.
-     * Values are masked to 8 bits.
+     * Raw operands fetched during instruction decoding, masked to 8 bits.
+     * For 16-bit immediates {@code firstOperand} holds the low byte and
+     * {@code secondOperand} the high byte.
      */
-    protected int[] operands;
+    protected int firstOperand;
+    protected int secondOperand;
 
     /**
      * Base number of cycles this instruction takes to execute.
@@ -54,20 +58,18 @@ public abstract class Instruction implements Runnable {
 
     /**
      * Sets the decoded values and operands for this instruction.
-     * Values are masked to ensure they're within 8-bit range.
+     * Operands are masked to ensure they're within 8-bit range.
      *
-     * @param opcodeValues Values extracted from the opcode.
-     * @param operands     Operands fetched from memory after the opcode.
+     * @param firstValue    First value extracted from the opcode.
+     * @param secondValue   Second value extracted from the opcode.
+     * @param firstOperand  First operand byte fetched after the opcode.
+     * @param secondOperand Second operand byte fetched after the opcode.
      */
-    public void setValues(int[] opcodeValues, int[] operands) {
-        for (int i = 0; i < opcodeValues.length; i++) {
-            opcodeValues[i] = 0xFF & opcodeValues[i];
-        }
-        for (int i = 0; i < operands.length; i++) {
-            operands[i] = 0xFF & operands[i];
-        }
-        this.operands = operands;
-        this.opcodeValues = opcodeValues;
+    public void setValues(int firstValue, int secondValue, int firstOperand, int secondOperand) {
+        this.firstValue = firstValue;
+        this.secondValue = secondValue;
+        this.firstOperand = 0xFF & firstOperand;
+        this.secondOperand = 0xFF & secondOperand;
     }
 
     /**
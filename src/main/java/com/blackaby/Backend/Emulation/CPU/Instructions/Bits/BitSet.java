@@ -48,18 +48,18 @@ public class BitSet extends Instruction {
         int value = 0;
         Register reg = Register.A;
         if (isRegister) {
-            reg = Register.getRegFrom3Bit(opcodeValues[1]);
+            reg = Register.getRegFrom3Bit(secondValue);
             value = cpu.regGet(reg);
         } else {
             value = memory.read(cpu.getHLValue());
         }
-        int bitPos = opcodeValues[0] & 0b111;
+        int bitPos = firstValue & 0b111;
         int mask = 0xFF & (1 << bitPos);
         if (test) {
             boolean isSet = (value & mask) != 0;
             cpu.setFlag(Flag.Z, !isSet);
             cpu.setFlag(Flag.H, true);
-            cpu.deactivateFlags(Flag.N);
+            cpu.setFlag(Flag.N, false);
         } else {
             if (activate) {
                 value |= mask;
@@ -69,9 +69,10 @@ public class Rotate extends Instruction {
         } else if (hl) {
             value = memory.read(cpu.getHLValue());
         } else {
-            value = cpu.regGet(Register.getRegFrom3Bit(opcodeValues[0]));
+            value = cpu.regGet(Register.getRegFrom3Bit(firstValue));
         }
 
+        boolean carry;
         if (circle) {
             // Circular rotate: the shifted-out bit is reinserted.
             boolean shiftedOut;
@@ -89,7 +90,7 @@ public class Rotate extends Instruction {
                 }
             }
             // Update carry flag with the bit that was shifted out.
-            cpu.setFlag(Flag.C, shiftedOut);
+            carry = shiftedOut;
         } else {
             // Rotate through carry: insert the old carry flag into the new bit.
             boolean oldCarry = cpu.getFlagBoolean(Flag.C);
@@ -108,7 +109,7 @@ public class Rotate extends Instruction {
                 }
             }
             // Update carry flag with the shifted-out bit.
-            cpu.setFlag(Flag.C, shiftedOut == 1);
+            carry = shiftedOut == 1;
         }
 
         // Write the result back to the appropriate destination.
@@ -117,13 +118,12 @@ public class Rotate extends Instruction {
         } else if (hl) {
             memory.write(cpu.getHLValue(), value);
         } else {
-            cpu.regSet(Register.getRegFrom3Bit(opcodeValues[0]), value);
+            cpu.regSet(Register.getRegFrom3Bit(firstValue), value);
         }
-        // Set the zero flag if the result is zero and affectZ is true.
+        // Z follows the result unless forceZ clears it; N and H are cleared.
         if (forceZ)
-            cpu.setFlag(Flag.Z, false);
+            cpu.setCarryFlags(carry);
         else
-            cpu.setFlag(Flag.Z, value == 0);
-        cpu.deactivateFlags(Flag.H, Flag.N);
+            cpu.setResultFlags(value, false, carry);
     }
 }
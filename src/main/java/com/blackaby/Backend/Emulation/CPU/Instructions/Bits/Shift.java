@@ -51,7 +51,7 @@ public class Shift extends Instruction {
         int value;
         Register reg = null;
         if (register) {
-            reg = Register.getRegFrom3Bit(opcodeValues[0]);
+            reg = Register.getRegFrom3Bit(firstValue);
             value = cpu.regGet(reg);
         } else {
             value = memory.read(cpu.getHLValue());
@@ -79,8 +79,6 @@ public class Shift extends Instruction {
             memory.write(cpu.getHLValue(), value);
         }
 
-        cpu.setFlag(DuckCPU.Flag.C, carry);
-        cpu.setFlag(DuckCPU.Flag.Z, value == 0);
-        cpu.deactivateFlags(DuckCPU.Flag.H, DuckCPU.Flag.N);
+        cpu.setResultFlags(value, false, carry);
     }
 }
\ No newline at end of file
@@ -44,7 +44,7 @@ public class Call extends Instruction {
     @Override
     public void run() {
         if (conditional) {
-            int condition = opcodeValues[0] & 0b11;
+            int condition = firstValue & 0b11;
             switch (condition) {
                 case 0b00: {
                     if (cpu.getFlagBoolean(Flag.Z)) {
@@ -75,7 +75,7 @@ public class Call extends Instruction {
 
         cycles += 3;
 
-        int address = (operands[1] << 8) | (operands[0] & 0xFF);
+        int address = (secondOperand << 8) | (firstOperand & 0xFF);
 
         int sp = cpu.getSP();
         int returnAddress = cpu.getPC();
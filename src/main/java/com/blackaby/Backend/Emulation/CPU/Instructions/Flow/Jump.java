@@ -64,7 +64,7 @@ public class Jump extends Instruction {
 
         // Determine cycles based on jump type and condition
         if (conditional) {
-            int condCode = opcodeValues[0] & 0b11;
+            int condCode = firstValue & 0b11;
             boolean jumpConditionMet = false;
             switch (condCode) {
                 case 0b00:
@@ -113,7 +113,7 @@ public class Jump extends Instruction {
 
         // Now perform the jump.
         if (isRelative) {
-            int offset = (byte) operands[0];
+            int offset = (byte) firstOperand;
             int newPC = pc + offset;
             cpu.setPC(newPC);
         } else if (isHL) {
@@ -122,7 +122,7 @@ public class Jump extends Instruction {
         } else {
             // For absolute jumps, operand bytes are stored in values[1] (low) and values[2]
             // (high)
-            int target = ((operands[1] & 0xFF) << 8) | (operands[0] & 0xFF);
+            int target = ((secondOperand & 0xFF) << 8) | (firstOperand & 0xFF);
             cpu.setPC(target);
         }
     }
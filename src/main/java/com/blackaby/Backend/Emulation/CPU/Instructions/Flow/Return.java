@@ -47,7 +47,7 @@ public class Return extends Instruction {
     @Override
     public void run() {
         if (conditional) {
-            int condition = opcodeValues[0] & 0b11;
+            int condition = firstValue & 0b11;
             switch (condition) {
                 case 0b00: {
                     if (cpu.getFlagBoolean(Flag.Z)) {
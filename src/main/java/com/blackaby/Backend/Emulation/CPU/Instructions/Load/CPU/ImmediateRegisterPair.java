@@ -29,8 +29,8 @@ public class ImmediateRegisterPair extends Instruction {
      */
     @Override
     public void run() {
-        int value = 0xFFFF & (((operands[1] & 0xFF) << 8) | (operands[0] & 0xFF));
-        Register destination = Register.getRegFrom2Bit(opcodeValues[0], false);
+        int value = 0xFFFF & (((secondOperand & 0xFF) << 8) | (firstOperand & 0xFF));
+        Register destination = Register.getRegFrom2Bit(firstValue, false);
         cpu.regSet16(destination, value);
     }
 }
@@ -38,11 +38,11 @@ public class LoadToRegister extends Instruction {
     public void run() {
         int value;
         Register destination;
-        destination = Register.getRegFrom3Bit(opcodeValues[0]);
+        destination = Register.getRegFrom3Bit(firstValue);
         if (sourceIsImmediate) {
-            value = operands[0] & 0xFF;
+            value = firstOperand & 0xFF;
         } else {
-            Register source = Register.getRegFrom3Bit(opcodeValues[1]);
+            Register source = Register.getRegFrom3Bit(secondValue);
             value = cpu.regGet(source);
         }
         cpu.regSet(destination, value);
@@ -29,7 +29,7 @@ public class AccumulatorMemoryImmediate extends Instruction {
      */
     @Override
     public void run() {
-        int address = 0xFFFF & ((operands[1] << 8) | (operands[0] & 0xFF));
+        int address = 0xFFFF & ((secondOperand << 8) | (firstOperand & 0xFF));
         int value = cpu.getAccumulator();
         memory.write(address, value);
     }
@@ -31,7 +31,7 @@ public class AccumulatorMemoryMaskImmediate extends Instruction {
      */
     @Override
     public void run() {
-        int lsb = operands[0] & 0xFF;
+        int lsb = firstOperand & 0xFF;
         int address = 0xFF00 | (lsb & 0xFF);
         int value = cpu.getAccumulator();
         memory.write(address, value);
@@ -30,7 +30,7 @@ public class ImmediateMemoryHL extends Instruction {
     @Override
     public void run() {
         int address = cpu.getHLValue();
-        int value = operands[0] & 0xFF;
+        int value = firstOperand & 0xFF;
         memory.write(address, value);
     }
 }
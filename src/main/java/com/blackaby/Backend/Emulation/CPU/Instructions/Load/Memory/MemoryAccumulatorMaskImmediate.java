@@ -32,7 +32,7 @@ public class MemoryAccumulatorMaskImmediate extends Instruction {
      */
     @Override
     public void run() {
-        int lsb = operands[0];
+        int lsb = firstOperand;
         int address = 0xFF00 | (lsb & 0xFF);
         int value = memory.read(address);
         cpu.setAccumulator(value);
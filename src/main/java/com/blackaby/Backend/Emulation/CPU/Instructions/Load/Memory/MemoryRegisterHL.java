@@ -31,7 +31,7 @@ public class MemoryRegisterHL extends Instruction {
      */
     @Override
     public void run() {
-        Register destination = Register.getRegFrom3Bit(opcodeValues[0]);
+        Register destination = Register.getRegFrom3Bit(firstValue);
         int address = cpu.getHLValue();
         int value = memory.read(address);
         cpu.regSet(destination, value);
@@ -31,7 +31,7 @@ public class RegisterMemoryHL extends Instruction {
      */
     @Override
     public void run() {
-        Register source = Register.getRegFrom3Bit(opcodeValues[0]);
+        Register source = Register.getRegFrom3Bit(firstValue);
         int address = cpu.getHLValue();
         int value = cpu.regGet(source);
         memory.write(address, value);
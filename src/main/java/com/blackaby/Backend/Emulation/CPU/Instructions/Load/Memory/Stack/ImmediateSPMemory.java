@@ -32,7 +32,7 @@ public class ImmediateSPMemory extends Instruction {
     @Override
     public void run() {
         int sp = cpu.getSP();
-        int address = ((operands[1] & 0xFF) << 8) | (operands[0] & 0xFF);
+        int address = ((secondOperand & 0xFF) << 8) | (firstOperand & 0xFF);
         memory.write(address, sp & 0xFF); // Store LSB
         memory.write(address + 1, (sp >> 8) & 0xFF); // Store MSB
     }
@@ -36,10 +36,11 @@ public class SetHLToSPImmediate extends Instruction {
     @Override
     public void run() {
         int sp = cpu.getSP();
-        int offset = (byte) operands[0];
+        int offset = (byte) firstOperand;
         int value = sp + offset;
         cpu.setHL(value);
-        cpu.deactivateFlags(Flag.Z, Flag.N);
+        cpu.setFlag(Flag.Z, false);
+        cpu.setFlag(Flag.N, false);
         cpu.setFlag(Flag.H, (sp & 0xF) + (offset & 0xF) > 0xF);
         cpu.setFlag(Flag.C, (sp & 0xFF) + (offset & 0xFF) > 0xFF);
     }
@@ -35,7 +35,7 @@ public class StackPop extends Instruction {
     @Override
     public void run() {
         int sp = cpu.getSP();
-        Register register = Register.getRegFrom2Bit(opcodeValues[0], true);
+        Register register = Register.getRegFrom2Bit(firstValue, true);
 
         int lsb = memory.read(sp);
         if (register == Register.AF)
@@ -35,7 +35,7 @@ public class StackPush extends Instruction {
     @Override
     public void run() {
         int sp = cpu.getSP();
-        Register register = Register.getRegFrom2Bit(opcodeValues[0], true);
+        Register register = Register.getRegFrom2Bit(firstValue, true);
         int value = cpu.regGet16(register) & 0xFFFF;
         if (register == Register.AF)
             value &= 0xFFF0;
@@ -36,7 +36,7 @@ public class AddByteSP extends Instruction {
     @Override
     public void run() {
         int sp = cpu.getSP();
-        int offset = operands[0]; // Keep it as loaded (signed or unsigned 8-bit)
+        int offset = firstOperand; // Keep it as loaded (signed or unsigned 8-bit)
 
         // In Java, byte is signed (-128 to 127).
         // For specific flag calculation, we need the raw unsigned values.
@@ -57,7 +57,8 @@ public class AddByteSP extends Instruction {
 
         cpu.setSP(result & 0xFFFF);
 
-        cpu.deactivateFlags(Flag.Z, Flag.N);
+        cpu.setFlag(Flag.Z, false);
+        cpu.setFlag(Flag.N, false);
         cpu.setFlag(Flag.H, halfCarry);
         cpu.setFlag(Flag.C, carry);
     }
@@ -36,7 +36,7 @@ public class AddPairHL extends Instruction {
     @Override
     public void run() {
         int hl = cpu.getHLValue();
-        Register reg = Register.getRegFrom2Bit(opcodeValues[0], false);
+        Register reg = Register.getRegFrom2Bit(firstValue, false);
         int value = cpu.regGet16(reg);
         cpu.setHL(hl + value);
 
@@ -4,7 +4,6 @@ import com.blackaby.Backend.Emulation.CPU.DuckCPU;
 import com.blackaby.Backend.Emulation.CPU.DuckCPU.Register;
 import com.blackaby.Backend.Emulation.CPU.Instruction;
 import com.blackaby.Backend.Emulation.Memory.DuckMemory;
-import com.blackaby.Backend.Emulation.CPU.DuckCPU.Flag;
 
 /**
  * Implements 8-bit arithmetic instructions for the accumulator (A).
@@ -59,7 +58,7 @@ public class Arithmetic extends Instruction {
         Register sourceReg = null;
         switch (valueType) {
             case REGISTER: {
-                sourceReg = Register.getRegFrom3Bit(opcodeValues[0]);
+                sourceReg = Register.getRegFrom3Bit(firstValue);
                 value = cpu.regGet(sourceReg);
                 break;
             }
@@ -68,7 +67,7 @@ public class Arithmetic extends Instruction {
                 break;
             }
             case IMMEDIATE: {
-                value = operands[0];
+                value = firstOperand;
                 value &= 0xFF;
                 break;
             }
@@ -84,15 +83,11 @@ public class Arithmetic extends Instruction {
         switch (arithmeticType) {
             case ADD: {
                 result = accumulator + value + carryValue;
-                cpu.setFlag(Flag.C, result > 0xFF);
-                cpu.setFlag(Flag.H, ((accumulator & 0x0F) + (value & 0x0F) + carryValue) > 0x0F);
                 break;
             }
             case CP:
             case SUBTRACT: {
                 result = accumulator - value - carryValue;
-                cpu.setFlag(Flag.C, result < 0);
-                cpu.setFlag(Flag.H, ((accumulator & 0x0F) - (value & 0x0F) - carryValue) < 0);
                 break;
             }
             default: {
@@ -100,13 +95,11 @@ public class Arithmetic extends Instruction {
             }
         }
 
+        cpu.setArithmeticFlags(accumulator, value, result, arithmeticType != ArithmeticType.ADD);
         result &= 0xFF;
 
         if (arithmeticType != ArithmeticType.CP)
             cpu.setAccumulator(result);
-
-        cpu.setFlag(Flag.Z, result == 0);
-        cpu.setFlag(Flag.N, arithmeticType != ArithmeticType.ADD);
     }
 
 }
@@ -2,7 +2,6 @@ package com.blackaby.Backend.Emulation.CPU.Instructions.Math;
 
 import com.blackaby.Backend.Emulation.CPU.DuckCPU;
 import com.blackaby.Backend.Emulation.CPU.DuckCPU.Register;
-import com.blackaby.Backend.Emulation.CPU.DuckCPU.Flag;
 import com.blackaby.Backend.Emulation.CPU.Instruction;
 import com.blackaby.Backend.Emulation.Memory.DuckMemory;
 
@@ -60,7 +59,7 @@ public class Bitwise extends Instruction {
 
         switch (valueType) {
             case REGISTER: {
-                sourceReg = Register.getRegFrom3Bit(opcodeValues[0]);
+                sourceReg = Register.getRegFrom3Bit(firstValue);
                 value = cpu.regGet(sourceReg);
                 break;
             }
@@ -69,7 +68,7 @@ public class Bitwise extends Instruction {
                 break;
             }
             case IMMEDIATE: {
-                value = operands[0];
+                value = firstOperand;
                 value &= 0xFF;
                 break;
             }
@@ -95,8 +94,6 @@ public class Bitwise extends Instruction {
         value &= 0xFF;
         cpu.regSet(Register.A, value);
 
-        cpu.setFlag(Flag.Z, value == 0);
-        cpu.setFlag(Flag.H, bitwiseType == BitwiseType.AND);
-        cpu.deactivateFlags(Flag.C, Flag.N);
+        cpu.setResultFlags(value, bitwiseType == BitwiseType.AND, false);
     }
 }
@@ -36,7 +36,7 @@ public class InDecrement16 extends Instruction {
      */
     @Override
     public void run() {
-        Register source = Register.getRegFrom2Bit(opcodeValues[0], false);
+        Register source = Register.getRegFrom2Bit(firstValue, false);
         int value = cpu.regGet16(source);
         value = (value + (increment ? 1 : -1)) & 0xFFFF;
         cpu.regSet16(source, value);
@@ -3,7 +3,6 @@ package com.blackaby.Backend.Emulation.CPU.Instructions.Math;
 import com.blackaby.Backend.Emulation.CPU.DuckCPU;
 import com.blackaby.Backend.Emulation.CPU.Instruction;
 import com.blackaby.Backend.Emulation.Memory.DuckMemory;
-import com.blackaby.Backend.Emulation.CPU.DuckCPU.Flag;
 import com.blackaby.Backend.Emulation.CPU.DuckCPU.Register;
 
 /**
@@ -46,7 +45,7 @@ public class IncDec extends Instruction {
 
         switch (valueType) {
             case REGISTER: {
-                sourceReg = Register.getRegFrom3Bit(opcodeValues[0]);
+                sourceReg = Register.getRegFrom3Bit(firstValue);
                 value = cpu.regGet(sourceReg);
                 break;
             }
@@ -55,7 +54,7 @@ public class IncDec extends Instruction {
                 break;
             }
             case IMMEDIATE: {
-                value = operands[0];
+                value = firstOperand;
                 value &= 0xFF;
                 break;
             }
@@ -66,6 +65,7 @@ public class IncDec extends Instruction {
 
         int oldValue = value;
         value = increment ? value + 1 : value - 1;
+        cpu.setIncDecFlags(oldValue, value, !increment);
         value &= 0xFF;
 
         if (valueType == ValueType.REGISTER) {
@@ -75,18 +75,6 @@ public class IncDec extends Instruction {
         } else {
             throw new IllegalArgumentException("Invalid arithmetic type");
         }
-
-        cpu.setFlag(Flag.N, !increment);
-        cpu.setFlag(Flag.Z, value == 0);
-        if (increment) {
-            // Check if (old nibble + 1) wrapped past 0xF
-            boolean halfCarry = ((oldValue & 0x0F) + 1) > 0x0F;
-            cpu.setFlag(Flag.H, halfCarry);
-        } else {
-            // Check if (old nibble - 1) went below 0x0
-            boolean halfCarry = (oldValue & 0x0F) == 0x00;
-            cpu.setFlag(Flag.H, halfCarry);
-        }
     }
 
 }
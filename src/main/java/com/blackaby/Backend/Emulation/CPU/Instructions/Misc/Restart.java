@@ -42,6 +42,9 @@ public class Restart extends Instruction {
         }
     }
 
+    /** Cached copy of the restart vectors, so execution never clones the enum array. */
+    private static final RestartType[] RESTART_TYPES = RestartType.values();
+
     /**
      * Constructs a RST instruction.
      *
@@ -71,7 +74,7 @@ public class Restart extends Instruction {
         cpu.setSP(cpu.getSP() - 1);
         memory.write(cpu.getSP(), pc & 0xFF);
 
-        RestartType type = RestartType.values()[opcodeValues[0]];
+        RestartType type = RESTART_TYPES[firstValue];
         cpu.setPC(type.getAddress());
     }
 }
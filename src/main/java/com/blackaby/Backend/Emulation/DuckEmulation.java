@@ -4,11 +4,13 @@ import com.blackaby.Frontend.DebugLogger;
 import com.blackaby.Backend.Emulation.CPU.*;
 import com.blackaby.Backend.Emulation.Misc.ROM;
 import com.blackaby.Backend.Emulation.Misc.Specifics;
+import com.blackaby.Backend.Emulation.Peripherals.DuckSerial;
 import com.blackaby.Backend.Emulation.Peripherals.DuckTimer;
 import com.blackaby.Frontend.DuckDisplay;
 import com.blackaby.Frontend.MainWindow;
-import com.blackaby.Backend.Emulation.CPU.DuckDecoder.InstructionType;
 import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+import com.blackaby.Misc.Settings;
+import com.blackaby.Misc.Settings.CPUEngine;
 
 /**
  * This class represents the emulation of the GameBoy
@@ -18,20 +20,24 @@ public class DuckEmulation implements Runnable {
 
     // Emulated Hardware Parts
     private DuckCPU cpu;
+    private DuckSwitchCPU switchCpu;
     private DuckMemory memory;
     private DuckDisplay display;
     private DuckPPU ppu;
     private ROM rom;
     private DuckTimer timerSet;
+    private DuckSerial serial;
+    private DuckScheduler scheduler;
     private MainWindow mainWindow;
 
     // Threading Variables
+    private static final long SHUTDOWN_TIMEOUT = 1000;
     private Thread emulationThread;
     private volatile boolean running = false;
     private volatile boolean paused = false;
     private Instruction instruction = null;
     private int frames = 0;
-    private int prevLY = 0;
+    private long framesCompleted = 0;
     private String romName = null;
 
     /**
@@ -50,22 +56,83 @@ public class DuckEmulation implements Runnable {
     public void startEmulation(String romfile) {
         running = true;
         paused = false;
-        // Initialise hardware
-        rom = new ROM(romfile);
-        romName = rom.getName();
-        memory = new DuckMemory();
-        cpu = new DuckCPU(memory, this);
-        DuckDecoder.initialiseMap(cpu, memory, this);
-        ppu = new DuckPPU(cpu, memory, display);
-        timerSet = new DuckTimer(cpu, memory);
-        memory.setTimerSet(timerSet);
-        // Set hardware references
+        createHardware(romfile);
         // Start emulation thread
         mainWindow.subtitle(romName, "[" + frames + " FPS]");
         emulationThread = new Thread(this);
         emulationThread.start();
     }
 
+    /**
+     * This method creates the CPU, memory and peripherals for a ROM and
+     * connects them to each other
+     *
+     * @param romfile The ROM file to be loaded
+     */
+    void createHardware(String romfile) {
+        rom = new ROM(romfile);
+        romName = rom.getName();
+        memory = new DuckMemory();
+        if (Settings.CPU_ENGINE == CPUEngine.RECOMPILER) {
+            DuckRecompiler recompiler = new DuckRecompiler(memory, this);
+            memory.setRecompiler(recompiler);
+            switchCpu = recompiler;
+            cpu = switchCpu;
+        } else if (Settings.CPU_ENGINE == CPUEngine.SWITCH) {
+            switchCpu = new DuckSwitchCPU(memory, this);
+            cpu = switchCpu;
+        } else {
+            switchCpu = null;
+            cpu = new DuckCPU(memory, this);
+        }
+        DuckDecoder.initialiseMap(cpu, memory, this);
+        scheduler = new DuckScheduler();
+        ppu = new DuckPPU(cpu, memory, display, scheduler);
+        timerSet = new DuckTimer(cpu, memory, scheduler);
+        scheduler.setHandler(DuckScheduler.EventType.PPU, ppu);
+        scheduler.setHandler(DuckScheduler.EventType.TIMER, timerSet);
+        ppu.registerIOHandlers();
+        timerSet.registerIOHandlers();
+        memory.setPPU(ppu);
+        ppu.setFrameListener(this::countFrame);
+        memory.setScheduler(scheduler);
+        serial = new DuckSerial(cpu, memory, scheduler);
+        scheduler.setHandler(DuckScheduler.EventType.SERIAL, serial);
+        serial.registerIOHandlers();
+    }
+
+    /**
+     * This method loads the ROM into memory and sets the registers to the
+     * values the boot ROM leaves them with
+     */
+    void powerOn() {
+        memory.loadROM(rom);
+        memory.write(DuckMemory.LCDC, 0x91);
+        // Set initial values
+        cpu.setPC(0x0100);
+        cpu.setAF(0x01B0);
+        cpu.setBC(0x0013);
+        cpu.setDE(0x00D8);
+        cpu.setHL(0x014D);
+        cpu.setSP(0xFFFE);
+        memory.write(0xFF47, 0xFC);
+        memory.write(0xFF00, 0xFF);
+        memory.write(DuckMemory.LCDC, 0x91);
+    }
+
+    /**
+     * This method runs the emulation as fast as it can until the PPU has
+     * finished the given number of frames, for headless runs
+     *
+     * @param count The number of frames to run
+     * @throws InterruptedException If the thread is interrupted
+     */
+    void runFrames(int count) throws InterruptedException {
+        long target = framesCompleted + count;
+        while (framesCompleted < target)
+            InstructionTick(false);
+    }
+
     /**
      * This method pauses or resumes the emulation
      */
@@ -87,63 +154,75 @@ public class DuckEmulation implements Runnable {
         mainWindow.subtitle();
     }
 
+    /**
+     * This method stops the emulation and waits for it to finish, so battery
+     * saves and serial output are written out before the application exits.
+     * Safe to call from a shutdown hook, and when nothing is running.
+     */
+    public void shutdown() {
+        running = false;
+        paused = false;
+        Thread thread = emulationThread;
+        DuckMemory current = memory;
+        if (thread == null || thread == Thread.currentThread())
+            return;
+        try {
+            thread.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The thread can be stuck in System.exit, which waits on the hooks
+        if (thread.isAlive() && current != null)
+            current.closeSaveFile();
+    }
+
     /**
      * This method is the main loop of the emulation
      */
     public void run() {
-        // Load rom
-        memory.loadROM(rom);
-        memory.write(DuckMemory.LCDC, 0x91);
-        // Set initial values
-        cpu.setPC(0x0100);
-        cpu.setAF(0x01B0);
-        cpu.setBC(0x0013);
-        cpu.setDE(0x00D8);
-        cpu.setHL(0x014D);
-        cpu.setSP(0xFFFE);
-        memory.write(0xFF47, 0xFC);
-        memory.write(0xFF00, 0xFF);
-        memory.write(DuckMemory.LCDC, 0x91);
-        startFrameCounter();
-        // Main loop for emulation
-        long prevTime = System.nanoTime();
-        double leftOvers = 0;
-        // DebugLogger.logFile(cpu.toString(), DebugLogger.LOG_FILE);
-        while (running) {
-            try {
-                long rn = System.nanoTime();
-                double delta = rn - prevTime + leftOvers;
-                int ticks = (int) (delta / Specifics.US_PER_CYCLE);
-                leftOvers = delta - (ticks * Specifics.US_PER_CYCLE);
-                prevTime = rn;
-                while (ticks > 0) {
-                    // InstructionTick now returns T-Cycles (4.19MHz units)
-                    // This matches the 'ticks' calculated from US_PER_CYCLE
-                    ticks -= InstructionTick(false);
-
-                    // Frame counting logic inside the loop
-                    int newLY = memory.read(DuckMemory.LY);
-                    if (newLY < prevLY)
-                        countFrame();
-                    prevLY = newLY;
-                }
-                if (paused) {
-                    while (paused)
-                        Thread.sleep(100);
-                    startFrameCounter();
+        try {
+            powerOn();
+            startFrameCounter();
+            // Main loop for emulation
+            long prevTime = System.nanoTime();
+            double leftOvers = 0;
+            // DebugLogger.logFile(cpu.toString(), DebugLogger.LOG_FILE);
+            while (running) {
+                try {
+                    long rn = System.nanoTime();
+                    double delta = rn - prevTime + leftOvers;
+                    int ticks = (int) (delta / Specifics.US_PER_CYCLE);
+                    leftOvers = delta - (ticks * Specifics.US_PER_CYCLE);
+                    prevTime = rn;
+                    while (ticks > 0) {
+                        // InstructionTick now returns T-Cycles (4.19MHz units)
+                        // This matches the 'ticks' calculated from US_PER_CYCLE
+                        ticks -= InstructionTick(false);
+                    }
+                    if (paused) {
+                        while (paused)
+                            Thread.sleep(100);
+                        startFrameCounter();
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             }
+        } finally {
+            // Clean up emulation after stopping, even if the loop failed
+            memory.closeSaveFile();
+            DebugLogger.flushSerialOutput();
+            rom = null;
+            cpu = null;
+            switchCpu = null;
+            memory = null;
+            ppu = null;
+            timerSet = null;
+            serial = null;
+            scheduler = null;
+            display.clear();
+            emulationThread = null;
         }
-        // Clean up emulation after stopping
-        rom = null;
-        cpu = null;
-        memory = null;
-        ppu = null;
-        timerSet = null;
-        display.clear();
-        emulationThread = null;
     }
 
     /**
@@ -192,6 +271,9 @@ public class DuckEmulation implements Runnable {
                 // Consumes 1 Machine Cycle while waiting
                 mCycles = 1;
             }
+        } else if (switchCpu != null) {
+            // The switch and recompiler engines fetch and decode by themselves
+            mCycles = switchCpu.step();
         } else {
             instruction = ReadNextInstruction();
             // cpu.execute returns M-Cycles (e.g., 1, 2, 3...)
@@ -203,38 +285,18 @@ public class DuckEmulation implements Runnable {
         // 1 M-Cycle = 4 T-Cycles
         int tCycles = mCycles * 4;
 
-        // Step hardware components for every T-Cycle
-        for (int i = 0; i < tCycles; i++) {
-            memory.tickDMA();
-            timerSet.tick();
-            ppu.step();
-            handleSerial();
-        }
+        // Run the hardware events that fall due in this time
+        scheduler.advance(tCycles);
 
         return tCycles;
     }
 
-    private void handleSerial() {
-        int serialControl = memory.read(DuckMemory.SERIAL_CONTROL);
-        int serialData = memory.read(DuckMemory.SERIAL_DATA);
-
-        if ((serialControl & 0x81) == 0x81) {
-
-            DebugLogger.serialOutput(serialData);
-
-            memory.write(DuckMemory.SERIAL_DATA, 0xFF);
-
-            memory.write(DuckMemory.SERIAL_CONTROL, serialControl & ~0x80);
-
-            // cpu.requestInterrupt(DuckCPU.Interrupt.SERIAL);
-        }
-    }
-
     /**
-     * This method reads the next instruction from the ROM, incrementing the PC and
-     * returning the instruction
-     * as an array of integers
-     * * @return The next instruction as an array of integers
+     * This method reads the next instruction from memory, moves the PC past
+     * it and decodes it through the dispatch table
+     *
+     * @return The decoded instruction, reused by later decodes of the same
+     *         opcode
      */
     private Instruction ReadNextInstruction() {
         // Get PC
@@ -252,21 +314,23 @@ public class DuckEmulation implements Runnable {
             pc++;
         }
 
-        // Get operand type
-        InstructionType type = DuckDecoder.getType(opcode, isCB);
+        // Look up the opcode in the dispatch table
+        int index = DuckDecoder.getTableIndex(opcode, isCB);
+        int operandCount = DuckDecoder.getOperandCount(index);
         // Check for unknown opcode
-        if (type == null) {
+        if (operandCount < 0) {
             // Optional: Handle unknown opcodes gracefully instead of crashing
             System.err.println("Unknown Opcode: " + Integer.toHexString(opcode));
             System.exit(1);
         }
-        // Get operand count
-        int operandCount = type.getOperandCount();
 
         // Read in next bytes
-        int[] operands = {};
+        int firstOperand = 0;
+        int secondOperand = 0;
         if (operandCount > 0) {
-            operands = memory.readBytes(pc, operandCount);
+            firstOperand = memory.read(pc);
+            if (operandCount > 1)
+                secondOperand = memory.read(pc + 1);
             pc += operandCount;
         }
 
@@ -277,12 +341,12 @@ public class DuckEmulation implements Runnable {
             cpu.setHaltBug(false);
 
         // Construct instruction
-        return DuckDecoder.constructInstruction(type, opcode,
-                operands);
+        return DuckDecoder.decode(index, firstOperand, secondOperand);
     }
 
     private void countFrame() {
         frames++;
+        framesCompleted++;
     }
 
     private void startFrameCounter() {
@@ -0,0 +1,150 @@
+package com.blackaby.Backend.Emulation;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the emulated time and runs hardware events when they fall due.
+ * <p>
+ * Time is a global count of T-cycles. Each hardware component owns one event
+ * slot and schedules it for the cycle at which it next needs to act (a PPU
+ * mode change, a TIMA overflow, the next DMA byte, a finished serial
+ * transfer). Between events the components do no work, so the main loop only
+ * has to {@link #advance(int)} the clock after each instruction instead of
+ * stepping every component on every T-cycle.
+ * </p>
+ * <p>
+ * With only one slot per component, the pending events are kept in a small
+ * array and the earliest one is found with a linear scan. Events due on the
+ * same cycle run in {@link EventType} order.
+ * </p>
+ */
+public class DuckScheduler {
+
+    /**
+     * The hardware events that can be scheduled, in the order they run when
+     * due on the same cycle.
+     */
+    public enum EventType {
+        DMA,
+        TIMER,
+        PPU,
+        SERIAL
+    }
+
+    /**
+     * Receives an event when it falls due.
+     */
+    public interface EventHandler {
+        /**
+         * Handles an event. The scheduler's clock reads the event time while
+         * this runs, and the handler may schedule its next event.
+         *
+         * @param time The cycle the event was scheduled for
+         */
+        void handleEvent(long time);
+    }
+
+    /** The due time of an event that is not scheduled. */
+    public static final long IDLE = Long.MAX_VALUE;
+
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private final long[] dueTimes = new long[EVENT_TYPES.length];
+    private final EventHandler[] handlers = new EventHandler[EVENT_TYPES.length];
+    private long now = 0;
+    private long nextDue = IDLE;
+
+    /**
+     * Constructs a scheduler at cycle 0 with no events pending.
+     */
+    public DuckScheduler() {
+        Arrays.fill(dueTimes, IDLE);
+    }
+
+    /**
+     * Returns the current emulated time.
+     *
+     * @return The number of T-cycles since the emulation started
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Sets the handler that runs when the given event falls due.
+     *
+     * @param type    The event type
+     * @param handler The handler
+     */
+    public void setHandler(EventType type, EventHandler handler) {
+        handlers[type.ordinal()] = handler;
+    }
+
+    /**
+     * Schedules an event, replacing any earlier schedule for it.
+     *
+     * @param type The event type
+     * @param time The cycle at which the event is due
+     */
+    public void schedule(EventType type, long time) {
+        dueTimes[type.ordinal()] = time;
+        if (time < nextDue)
+            nextDue = time;
+        else
+            updateNextDue();
+    }
+
+    /**
+     * Cancels an event if it is scheduled.
+     *
+     * @param type The event type
+     */
+    public void cancel(EventType type) {
+        dueTimes[type.ordinal()] = IDLE;
+        updateNextDue();
+    }
+
+    /**
+     * Returns the cycle at which an event is due.
+     *
+     * @param type The event type
+     * @return The due time, or {@link #IDLE} if it is not scheduled
+     */
+    public long getDueTime(EventType type) {
+        return dueTimes[type.ordinal()];
+    }
+
+    /**
+     * Moves the clock forward, running every event that falls due on the way
+     * in time order.
+     *
+     * @param cycles The number of T-cycles to advance by
+     */
+    public void advance(int cycles) {
+        long target = now + cycles;
+        while (nextDue <= target) {
+            int next = 0;
+            for (int i = 1; i < dueTimes.length; i++) {
+                if (dueTimes[i] < dueTimes[next])
+                    next = i;
+            }
+            now = dueTimes[next];
+            dueTimes[next] = IDLE;
+            updateNextDue();
+            handlers[next].handleEvent(now);
+        }
+        now = target;
+    }
+
+    /**
+     * Recomputes the earliest due time.
+     */
+    private void updateNextDue() {
+        long earliest = IDLE;
+        for (long time : dueTimes) {
+            if (time < earliest)
+                earliest = time;
+        }
+        nextDue = earliest;
+    }
+}
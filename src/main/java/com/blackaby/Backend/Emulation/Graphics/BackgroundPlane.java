@@ -0,0 +1,95 @@
+package com.blackaby.Backend.Emulation.Graphics;
+
+import java.util.Arrays;
+
+import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+
+/**
+ * This class keeps one 32x32 tile map drawn out as a 256x256 plane of colour
+ * indices.
+ * Each 8x8 cell remembers the tile and tile version it was drawn with, and is
+ * only drawn again when its map entry is written, the tile's data changes or
+ * the map and tile data selection change. A scanline of the layer is then
+ * copied out of the plane with at most two array copies.
+ */
+public class BackgroundPlane {
+    public static final int SIZE = 256;
+
+    private final DuckMemory memory;
+    private final TileCache tileCache;
+    private final byte[] plane = new byte[SIZE * SIZE];
+    // Tile drawn in each cell, or -1 if the cell must be drawn again
+    private final int[] cellTiles = new int[32 * 32];
+    private final int[] cellVersions = new int[32 * 32];
+    private int mapBase = -1;
+    private boolean use8000;
+
+    /**
+     * Creates a plane with every cell still to be drawn
+     *
+     * @param memory    The memory to read the tile map from
+     * @param tileCache The decoded tiles to draw cells with
+     */
+    public BackgroundPlane(DuckMemory memory, TileCache tileCache) {
+        this.memory = memory;
+        this.tileCache = tileCache;
+        Arrays.fill(cellTiles, -1);
+    }
+
+    /**
+     * Marks the cell behind a tile map entry as changed. Writes to the map not
+     * shown in the plane are ignored, as switching maps redraws every cell.
+     *
+     * @param address The VRAM address written
+     */
+    public void invalidate(int address) {
+        if ((address & ~0x3FF) == mapBase)
+            cellTiles[address & 0x3FF] = -1;
+    }
+
+    /**
+     * Copies a line of the plane, wrapping around at its right edge
+     *
+     * @param mapBase   The tile map to show, 0x9800 or 0x9C00
+     * @param use8000   Whether tiles are numbered from 0x8000 (LCDC bit 4)
+     *                  rather than signed from 0x9000
+     * @param y         The line of the plane, 0-255
+     * @param x         The column to start from, 0-255
+     * @param dest      The array to copy colour indices into
+     * @param destStart Where to start in the array
+     * @param length    The number of pixels to copy, at most 256
+     */
+    public void copyLine(int mapBase, boolean use8000, int y, int x, byte[] dest, int destStart, int length) {
+        if (mapBase != this.mapBase || use8000 != this.use8000) {
+            this.mapBase = mapBase;
+            this.use8000 = use8000;
+            Arrays.fill(cellTiles, -1);
+        }
+        int cellRow = y / 8 * 32;
+        for (int cell = cellRow; cell < cellRow + 32; cell++) {
+            int tile = cellTiles[cell];
+            if (tile < 0 || cellVersions[cell] != tileCache.getVersion(tile))
+                drawCell(cell);
+        }
+
+        int lineStart = y * SIZE;
+        int first = Math.min(length, SIZE - x);
+        System.arraycopy(plane, lineStart + x, dest, destStart, first);
+        if (first < length)
+            System.arraycopy(plane, lineStart, dest, destStart + first, length - first);
+    }
+
+    private void drawCell(int cell) {
+        int tileID = memory.readFromPPU(mapBase + cell) & 0xFF;
+        // 0x8800 addressing numbers tiles from 0x9000, signed
+        int tile = use8000 ? tileID : 256 + (byte) tileID;
+        byte[] tiles = tileCache.getIndices();
+        int target = (cell / 32) * 8 * SIZE + (cell % 32) * 8;
+        for (int row = 0; row < 8; row++) {
+            System.arraycopy(tiles, tileCache.getRow(tile, row), plane, target, 8);
+            target += SIZE;
+        }
+        cellTiles[cell] = tile;
+        cellVersions[cell] = tileCache.getVersion(tile);
+    }
+}
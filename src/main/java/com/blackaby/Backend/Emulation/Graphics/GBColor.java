@@ -45,6 +45,16 @@ public class GBColor {
         return new Color(r, g, b);
     }
 
+    /**
+     * Packs the color into an int as 0xRRGGBB, the layout of the display's
+     * pixel array
+     * 
+     * @return Packed RGB value
+     */
+    public int toRGB() {
+        return r << 16 | g << 8 | b;
+    }
+
     /**
      * Returns a string representation of the color
      * 
@@ -0,0 +1,116 @@
+package com.blackaby.Backend.Emulation.Graphics;
+
+import java.util.Arrays;
+
+import com.blackaby.Backend.Emulation.CPU.DuckSprite;
+import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+import com.blackaby.Backend.Emulation.Misc.Specifics;
+
+/**
+ * This class sorts the 40 sprites in OAM into lists of the scanlines they
+ * cover.
+ * The lists are only rebuilt after OAM is written, by the CPU or by DMA, or
+ * the sprite height changes, so drawing a line does not scan OAM. Like the
+ * hardware, each line keeps the first 10 sprites in OAM order that cover it.
+ * They are sorted by DMG priority: the sprite with the smallest X comes
+ * first, and sprites with the same X keep their OAM order.
+ */
+public class SpriteIndex {
+    public static final int SPRITE_COUNT = 40;
+    public static final int SPRITES_PER_LINE = 10;
+
+    private final DuckMemory memory;
+    private final DuckSprite[] sprites = new DuckSprite[SPRITE_COUNT];
+    // SPRITES_PER_LINE slots per scanline, filled from the start
+    private final DuckSprite[] lines = new DuckSprite[Specifics.GB_DISPLAY_HEIGHT * SPRITES_PER_LINE];
+    private final int[] counts = new int[Specifics.GB_DISPLAY_HEIGHT];
+    private boolean dirty = true;
+    private int height;
+
+    /**
+     * Creates an index that is built the first time it is used
+     *
+     * @param memory The memory to read OAM from
+     */
+    public SpriteIndex(DuckMemory memory) {
+        this.memory = memory;
+        for (int i = 0; i < SPRITE_COUNT; i++)
+            sprites[i] = new DuckSprite(0, 0, 0, 0);
+    }
+
+    /**
+     * Marks the lists as out of date after OAM changes
+     */
+    public void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * Rebuilds the lists if OAM or the sprite height changed since they were
+     * last built
+     *
+     * @param height The sprite height from LCDC bit 2, 8 or 16
+     */
+    public void refresh(int height) {
+        if (!dirty && height == this.height)
+            return;
+        this.height = height;
+        dirty = false;
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < SPRITE_COUNT; i++) {
+            int address = DuckMemory.OAM_START + i * 4;
+            DuckSprite sprite = sprites[i];
+            sprite.y = (memory.readFromPPU(address) & 0xFF) - 16;
+            sprite.x = (memory.readFromPPU(address + 1) & 0xFF) - 8;
+            sprite.tileIndex = memory.readFromPPU(address + 2) & 0xFF;
+            sprite.attributes = memory.readFromPPU(address + 3) & 0xFF;
+
+            int first = Math.max(sprite.y, 0);
+            int last = Math.min(sprite.y + height, Specifics.GB_DISPLAY_HEIGHT);
+            for (int line = first; line < last; line++)
+                add(line, sprite);
+        }
+    }
+
+    /**
+     * Inserts a sprite into a line's list behind the sprites it loses to,
+     * unless the line already has its 10
+     *
+     * @param line   The scanline
+     * @param sprite The sprite, visited in OAM order
+     */
+    private void add(int line, DuckSprite sprite) {
+        int count = counts[line];
+        if (count == SPRITES_PER_LINE)
+            return;
+        int base = line * SPRITES_PER_LINE;
+        int slot = base + count;
+        while (slot > base && lines[slot - 1].x > sprite.x) {
+            lines[slot] = lines[slot - 1];
+            slot--;
+        }
+        lines[slot] = sprite;
+        counts[line] = count + 1;
+    }
+
+    /**
+     * Returns how many sprites are drawn on a scanline
+     *
+     * @param line The scanline, 0-143
+     * @return The number of sprites, at most 10
+     */
+    public int getCount(int line) {
+        return counts[line];
+    }
+
+    /**
+     * Returns one of the sprites drawn on a scanline
+     *
+     * @param line The scanline, 0-143
+     * @param slot The sprite's place in priority order, 0 being the highest
+     * @return The sprite
+     */
+    public DuckSprite getSprite(int line, int slot) {
+        return lines[line * SPRITES_PER_LINE + slot];
+    }
+}
@@ -0,0 +1,142 @@
+package com.blackaby.Backend.Emulation.Graphics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+
+/**
+ * This class holds the 384 tiles in VRAM decoded to colour indices, both as
+ * stored and mirrored left to right for X-flipped sprites.
+ * Each tile is decoded the first time it is drawn after its 16 bytes change,
+ * so the renderer copies whole rows of indices instead of pulling single
+ * bits out of the tile data for every pixel. A row's two bytes are decoded
+ * together through a lookup table into a long holding its 8 indices, which is
+ * stored in one write.
+ */
+public class TileCache {
+    public static final int TILE_COUNT = 384;
+    public static final int TILE_DATA_START = 0x8000;
+    public static final int TILE_DATA_END = TILE_DATA_START + TILE_COUNT * 16 - 1;
+
+    // Spreads the bits of a byte over the bytes of a long, leftmost pixel in
+    // the lowest byte, so a row is SPREAD[low] | SPREAD[high] << 1
+    private static final long[] SPREAD = new long[256];
+    // Stores a long into a byte array, lowest byte first
+    private static final VarHandle ROW = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            long spread = 0;
+            for (int x = 0; x < 8; x++)
+                spread |= (long) ((value >> (7 - x)) & 1) << (x * 8);
+            SPREAD[value] = spread;
+        }
+    }
+
+    private final DuckMemory memory;
+    // 64 colour indices per tile, row by row
+    private final byte[] indices = new byte[TILE_COUNT * 64];
+    // The same rows with their pixels in reverse order
+    private final byte[] mirrored = new byte[TILE_COUNT * 64];
+    private final boolean[] dirty = new boolean[TILE_COUNT];
+    // Bumped on every change, so layers built from a tile can tell it is stale
+    private final int[] versions = new int[TILE_COUNT];
+
+    /**
+     * Creates a cache with every tile still to be decoded
+     *
+     * @param memory The memory to read tile data from
+     */
+    public TileCache(DuckMemory memory) {
+        this.memory = memory;
+        Arrays.fill(dirty, true);
+    }
+
+    /**
+     * Returns the decoded colour indices of all tiles. Only rows located with
+     * {@link #getRow(int, int)} are guaranteed to be current.
+     *
+     * @return The colour indices, 64 per tile
+     */
+    public byte[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * Returns the decoded colour indices of all tiles with each row mirrored,
+     * laid out like {@link #getIndices()}
+     *
+     * @return The mirrored colour indices, 64 per tile
+     */
+    public byte[] getMirroredIndices() {
+        return mirrored;
+    }
+
+    /**
+     * Returns where a row of a tile starts in {@link #getIndices()} and
+     * {@link #getMirroredIndices()}, decoding the tile first if its data has
+     * changed
+     *
+     * @param tile The tile number, 0-383, counted from 0x8000
+     * @param row  The row within the tile, 0-7
+     * @return The offset of the row's 8 colour indices
+     */
+    public int getRow(int tile, int row) {
+        if (dirty[tile])
+            decode(tile);
+        return tile * 64 + row * 8;
+    }
+
+    /**
+     * Marks the tile holding an address as changed. Addresses past the tile
+     * data (the tile maps) are ignored.
+     *
+     * @param address The VRAM address written
+     */
+    public void invalidate(int address) {
+        if (address >= TILE_DATA_START && address <= TILE_DATA_END) {
+            int tile = (address - TILE_DATA_START) >> 4;
+            dirty[tile] = true;
+            versions[tile]++;
+        }
+    }
+
+    /**
+     * Returns a number that changes whenever a tile's data changes
+     *
+     * @param tile The tile number, 0-383
+     * @return The tile's version
+     */
+    public int getVersion(int tile) {
+        return versions[tile];
+    }
+
+    /**
+     * Decodes a row of a tile to its 8 colour indices
+     *
+     * @param low  The row's low bit plane byte, 0-255
+     * @param high The row's high bit plane byte, 0-255
+     * @return The indices, one per byte, leftmost pixel in the lowest byte
+     */
+    static long decodeRow(int low, int high) {
+        return SPREAD[low] | SPREAD[high] << 1;
+    }
+
+    private void decode(int tile) {
+        int address = TILE_DATA_START + tile * 16;
+        int offset = tile * 64;
+        for (int row = 0; row < 8; row++) {
+            int low = memory.readFromPPU(address + row * 2) & 0xFF;
+            int high = memory.readFromPPU(address + row * 2 + 1) & 0xFF;
+            long pixels = decodeRow(low, high);
+            ROW.set(indices, offset, pixels);
+            ROW.set(mirrored, offset, Long.reverseBytes(pixels));
+            offset += 8;
+        }
+        dirty[tile] = false;
+    }
+}
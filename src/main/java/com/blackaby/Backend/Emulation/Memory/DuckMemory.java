@@ -1,7 +1,21 @@
 package com.blackaby.Backend.Emulation.Memory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.blackaby.Backend.Emulation.DuckScheduler;
+import com.blackaby.Backend.Emulation.CPU.DuckPPU;
+import com.blackaby.Backend.Emulation.CPU.DuckRecompiler;
+import com.blackaby.Backend.Emulation.Memory.MBC.MBC1;
+import com.blackaby.Backend.Emulation.Memory.MBC.MBC2;
+import com.blackaby.Backend.Emulation.Memory.MBC.MBC3;
+import com.blackaby.Backend.Emulation.Memory.MBC.MBC5;
+import com.blackaby.Backend.Emulation.Memory.MBC.MemoryBankController;
+import com.blackaby.Backend.Emulation.Memory.MBC.RealTimeClock;
+import com.blackaby.Backend.Emulation.Memory.MBC.RomOnly;
 import com.blackaby.Backend.Emulation.Misc.ROM;
-import com.blackaby.Backend.Emulation.Peripherals.DuckTimer;
+import com.blackaby.Backend.Emulation.Misc.Specifics;
+import com.blackaby.Misc.Settings;
 
 /**
  * Represents the Game Boy's memory system.
@@ -12,6 +26,11 @@ import com.blackaby.Backend.Emulation.Peripherals.DuckTimer;
  * - Stack operations
  * - Special register behaviour (e.g., DIV reset, DMA trigger)
  * </p>
+ * <p>
+ * Each I/O register at 0xFF00-0xFF7F can have read and write handlers,
+ * registered by the component that owns it. Registers without a handler are
+ * plain storage.
+ * </p>
  * Supports loading a ROM and provides access to memory-mapped IO.
  */
 
@@ -24,6 +43,33 @@ public class DuckMemory {
         ROM_ONLY, MBC1, MBC2, MBC3, MBC5, UNKNOWN
     }
 
+    /**
+     * Supplies the value the CPU reads from an I/O register.
+     */
+    public interface IOReadHandler {
+        /**
+         * Reads the register.
+         *
+         * @param address The register address
+         * @return The 8-bit value
+         */
+        int read(int address);
+    }
+
+    /**
+     * Carries out a CPU write to an I/O register. The handler decides what is
+     * stored, through {@link DuckMemory#setIORegister(int, int)}.
+     */
+    public interface IOWriteHandler {
+        /**
+         * Writes the register.
+         *
+         * @param address The register address
+         * @param value   The 8-bit value written
+         */
+        void write(int address, int value);
+    }
+
     // Memory Constants
     public static final int MEMORY_SIZE = 0x10000;
     public static final int ROM_BANK_0_START = 0x0000;
@@ -52,9 +98,13 @@ public class DuckMemory {
     public static final int SERIAL_CONTROL = 0xFF02;
     public static final int LCDC = 0xFF40;
     public static final int LY = 0xFF44;
+    public static final int LYC = 0xFF45;
     public static final int SCY = 0xFF42;
     public static final int SCX = 0xFF43;
     public static final int BGP = 0xFF47;
+    public static final int OBP0 = 0xFF48;
+    public static final int OBP1 = 0xFF49;
+    public static final int WY = 0xFF4A;
     public static final int DIV = 0xFF04;
     public static final int TIMA = 0xFF05;
     public static final int TMA = 0xFF06;
@@ -62,43 +112,162 @@ public class DuckMemory {
     public static final int JOYPAD = 0xFF00;
     public static final int STAT = 0xFF41;
     public static final int DMA = 0xFF46;
+    public static final int DMA_DURATION = 160 * 4;
+    private static final int PAGE_COUNT = 0x100;
+    private static final int IO_REGISTER_COUNT = IO_REGISTERS_END - IO_REGISTERS_START + 1;
+    // RAM only backs 0x8000-0xFFFF; the ROM area is served from the cartridge
+    private static final int RAM_START = VRAM_START;
+    public static final int WX = 0xFF4B;
     public static final int IE = 0xFFFF;
 
-    private int ram[];
-    private int rom[];
-    @SuppressWarnings("unused")
+    private byte ram[];
+    private ByteBuffer rom;
     private int romBank = 1;
-    @SuppressWarnings("unused")
-    private int ramBank = 0;
-    @SuppressWarnings("unused")
-    private boolean ramEnabled = false;
-    @SuppressWarnings("unused")
-    private boolean bankingMode = false;
-    @SuppressWarnings("unused")
+    private int lowRomBank = 0;
     private MBCType mbcType;
-    @SuppressWarnings("unused")
+    private MemoryBankController mbc;
     private int totalRomBanks;
-    @SuppressWarnings("unused")
     private int totalRamBanks;
-    private DuckTimer timerSet;
+    private SaveFile saveFile;
+    private DuckRecompiler recompiler;
+    private DuckScheduler scheduler;
+    private DuckPPU ppu;
     private boolean dmaActive = false;
-    private int dmaCounter = 0;
     private int dmaSource = 0;
 
+    // Page tables, indexed by the high address byte. A mapped page reads or
+    // writes the backing array at base + low byte; a null entry takes the slow
+    // path through the region checks in readSlow and writeSlow. ROM pages read
+    // the mapped cartridge at romBases[page] + low byte instead (-1 if unmapped).
+    private final int[] romBases = new int[PAGE_COUNT];
+    private final byte[][] readPages = new byte[PAGE_COUNT][];
+    private final int[] readBases = new int[PAGE_COUNT];
+    private final byte[][] writePages = new byte[PAGE_COUNT][];
+    private final int[] writeBases = new int[PAGE_COUNT];
+
+    // I/O handlers, indexed by address - 0xFF00; null is plain storage
+    private final IOReadHandler[] ioReaders = new IOReadHandler[IO_REGISTER_COUNT];
+    private final IOWriteHandler[] ioWriters = new IOWriteHandler[IO_REGISTER_COUNT];
+
     /**
      * Constructs a new memory instance and clears RAM.
      */
     public DuckMemory() {
-        this.ram = new int[MEMORY_SIZE];
+        this.ram = new byte[MEMORY_SIZE - RAM_START];
+        mapPages();
+    }
+
+    /**
+     * Sets the handlers for an I/O register, replacing any set before.
+     *
+     * @param address The register address, 0xFF00-0xFF7F.
+     * @param reader  The read handler, or null to read the stored value.
+     * @param writer  The write handler, or null to store the value written.
+     */
+    public void setIOHandlers(int address, IOReadHandler reader, IOWriteHandler writer) {
+        ioReaders[address - IO_REGISTERS_START] = reader;
+        ioWriters[address - IO_REGISTERS_START] = writer;
+    }
+
+    /**
+     * Returns the value stored for an I/O register, without running its read
+     * handler.
+     *
+     * @param address The register address.
+     * @return The stored 8-bit value.
+     */
+    public int getIORegister(int address) {
+        return readRAM(address);
+    }
+
+    /**
+     * Stores the value of an I/O register, without running its write handler.
+     *
+     * @param address The register address.
+     * @param value   The 8-bit value.
+     */
+    public void setIORegister(int address, int value) {
+        writeRAM(address, value);
+    }
+
+    /**
+     * Sets the scheduler used to time DMA transfers, registers the DMA event
+     * with it and routes writes to the DMA register to start transfers.
+     *
+     * @param scheduler The scheduler to bind.
+     */
+    public void setScheduler(DuckScheduler scheduler) {
+        this.scheduler = scheduler;
+        scheduler.setHandler(DuckScheduler.EventType.DMA, _ -> completeDMA());
+        setIOHandlers(DMA, null, (_, value) -> startDMA(value));
+    }
+
+    /**
+     * Sets the PPU to bring up to date before VRAM and OAM accesses.
+     *
+     * @param ppu The PPU to bind.
+     */
+    public void setPPU(DuckPPU ppu) {
+        this.ppu = ppu;
+    }
+
+    /**
+     * Sets the recompiler to notify about writes to code and bank switches.
+     *
+     * @param recompiler The recompiler to bind, or null for none.
+     */
+    public void setRecompiler(DuckRecompiler recompiler) {
+        this.recompiler = recompiler;
+    }
+
+    /**
+     * Returns the ROM bank currently mapped to 0x4000-0x7FFF.
+     *
+     * @return The ROM bank number.
+     */
+    public int getRomBank() {
+        return romBank;
+    }
+
+    /**
+     * Returns the ROM bank currently mapped to 0x0000-0x3FFF. This is bank 0
+     * except in MBC1's advanced banking mode.
+     *
+     * @return The ROM bank number.
+     */
+    public int getLowRomBank() {
+        return lowRomBank;
+    }
+
+    /**
+     * Returns whether the cartridge's controller can map a bank other than 0
+     * to 0x0000-0x3FFF.
+     *
+     * @return True if the low ROM bank can change.
+     */
+    public boolean canRemapLowRomBank() {
+        return mbc != null && mbc.canRemapLowRomBank();
+    }
+
+    /**
+     * Returns the cartridge's bank controller.
+     *
+     * @return The controller, or null before a ROM is loaded.
+     */
+    public MemoryBankController getMBC() {
+        return mbc;
     }
 
     /**
-     * Sets the attached timer component used for timing registers.
+     * Returns the offset in the ROM file of a byte in the ROM area, using the
+     * banks currently selected.
      *
-     * @param timerSet The timer to bind.
+     * @param address An address in 0x0000-0x7FFF.
+     * @return The offset in the ROM.
      */
-    public void setTimerSet(DuckTimer timerSet) {
-        this.timerSet = timerSet;
+    private int romOffset(int address) {
+        int bank = address < ROM_BANK_N_START ? lowRomBank : romBank;
+        return bank * MemoryBankController.ROM_BANK_SIZE + (address & (MemoryBankController.ROM_BANK_SIZE - 1));
     }
 
     /**
@@ -109,73 +278,83 @@ public class DuckMemory {
     public void loadROM(ROM rom) {
         this.rom = rom.getData();
 
-        // // Read Cartridge Type from ROM Header
-        // int cartridgeType = this.rom[0x0147] & 0xFF;
-
-        // switch (cartridgeType) {
-        // case 0x00:
-        // mbcType = MBCType.ROM_ONLY;
-        // break;
-        // case 0x01:
-        // case 0x02:
-        // case 0x03:
-        // mbcType = MBCType.MBC1;
-        // break;
-        // case 0x05:
-        // case 0x06:
-        // mbcType = MBCType.MBC2;
-        // break;
-        // case 0x0F:
-        // case 0x10:
-        // case 0x11:
-        // case 0x12:
-        // case 0x13:
-        // mbcType = MBCType.MBC3;
-        // break;
-        // case 0x19:
-        // case 0x1A:
-        // case 0x1B:
-        // case 0x1C:
-        // case 0x1D:
-        // case 0x1E:
-        // mbcType = MBCType.MBC5;
-        // break;
-        // default:
-        // mbcType = MBCType.UNKNOWN;
-        // break;
-        // }
-
-        // // Read ROM Size
-        // int romSizeCode = rom.getData()[0x0148] & 0xFF;
-        // totalRomBanks = 2 << romSizeCode; // ROM banks = 2^(n+1)
-
-        // // Read RAM Size
-        // int ramSizeCode = rom.getData()[0x0149] & 0xFF;
-        // switch (ramSizeCode) {
-        // case 0x00:
-        // totalRamBanks = 0;
-        // break;
-        // case 0x01:
-        // totalRamBanks = 1;
-        // break; // 2 KB (MBC2 internal RAM)
-        // case 0x02:
-        // totalRamBanks = 1;
-        // break; // 8 KB
-        // case 0x03:
-        // totalRamBanks = 4;
-        // break; // 32 KB (4 banks)
-        // case 0x04:
-        // totalRamBanks = 16;
-        // break; // 128 KB (16 banks)
-        // case 0x05:
-        // totalRamBanks = 8;
-        // break; // 64 KB (8 banks)
-        // default:
-        // totalRamBanks = 0;
-        // break;
-        // }
-        ram = new int[MEMORY_SIZE];
-        System.arraycopy(this.rom, 0, ram, 0, this.rom.length);
+        // Read Cartridge Type from ROM Header
+        int cartridgeType = rom.read(0x0147);
+
+        switch (cartridgeType) {
+            case 0x00:
+            case 0x08:
+            case 0x09:
+                mbcType = MBCType.ROM_ONLY;
+                break;
+            case 0x01:
+            case 0x02:
+            case 0x03:
+                mbcType = MBCType.MBC1;
+                break;
+            case 0x05:
+            case 0x06:
+                mbcType = MBCType.MBC2;
+                break;
+            case 0x0F:
+            case 0x10:
+            case 0x11:
+            case 0x12:
+            case 0x13:
+                mbcType = MBCType.MBC3;
+                break;
+            case 0x19:
+            case 0x1A:
+            case 0x1B:
+            case 0x1C:
+            case 0x1D:
+            case 0x1E:
+                mbcType = MBCType.MBC5;
+                break;
+            default:
+                mbcType = MBCType.UNKNOWN;
+                break;
+        }
+
+        // Bank numbers wrap at the banks actually present in the file
+        totalRomBanks = Integer.highestOneBit(Math.max(rom.size() / MemoryBankController.ROM_BANK_SIZE, 2));
+
+        // Read RAM Size
+        int ramSize = switch (rom.read(0x0149)) {
+            case 0x01 -> 0x800; // 2 KB
+            case 0x02 -> 0x2000; // 8 KB
+            case 0x03 -> 0x8000; // 32 KB (4 banks)
+            case 0x04 -> 0x20000; // 128 KB (16 banks)
+            case 0x05 -> 0x10000; // 64 KB (8 banks)
+            default -> 0;
+        };
+        totalRamBanks = (ramSize + MemoryBankController.RAM_BANK_SIZE - 1) / MemoryBankController.RAM_BANK_SIZE;
+
+        mbc = switch (mbcType) {
+            case ROM_ONLY -> new RomOnly(totalRomBanks, ramSize);
+            case MBC2 -> new MBC2(totalRomBanks);
+            case MBC3 -> new MBC3(totalRomBanks, ramSize,
+                    cartridgeType == 0x0F || cartridgeType == 0x10 ? createClock() : null);
+            case MBC5 -> new MBC5(totalRomBanks, ramSize);
+            // Unknown controllers get MBC1 banking, the most common scheme
+            default -> new MBC1(totalRomBanks, ramSize);
+        };
+        romBank = mbc.getHighRomBank();
+        lowRomBank = mbc.getLowRomBank();
+
+        closeSaveFile();
+        if (hasBattery(cartridgeType) && (mbc.getRAM().length > 0 || mbc.getClock() != null)) {
+            try {
+                saveFile = SaveFile.open(rom.getSavePath(), mbc.getRAM(), mbc.getClock(),
+                        Settings.SAVE_FLUSH_INTERVAL);
+                mbc.setSaveFile(saveFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        ram = new byte[MEMORY_SIZE - RAM_START];
+        mapPages();
 
         // DebugLogger.logn("MBC Type: " + mbcType);
         // DebugLogger.logn("Total ROM Banks: " + totalRomBanks);
@@ -183,111 +362,301 @@ public class DuckMemory {
     }
 
     /**
-     * Reads a byte from memory, with special handling for echo RAM and special
-     * registers.
+     * Creates an MBC3 clock running on wall-clock time, or on emulated time
+     * when {@link Settings#RTC_EMULATED_TIME} is set.
+     *
+     * @return The clock.
+     */
+    private RealTimeClock createClock() {
+        if (Settings.RTC_EMULATED_TIME)
+            return new RealTimeClock(() -> scheduler.now() * 1000 / (long) Specifics.CPS, false);
+        return new RealTimeClock(System::currentTimeMillis, true);
+    }
+
+    /**
+     * Returns whether a cartridge type keeps its external RAM powered by a
+     * battery.
+     *
+     * @param cartridgeType The cartridge type from the ROM header.
+     * @return True if the RAM should be saved.
+     */
+    private static boolean hasBattery(int cartridgeType) {
+        return switch (cartridgeType) {
+            case 0x03, 0x06, 0x09, 0x0F, 0x10, 0x13, 0x1B, 0x1E -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Writes out any unsaved cartridge RAM and closes the save file. Call when
+     * the emulation stops.
+     */
+    public synchronized void closeSaveFile() {
+        if (saveFile != null) {
+            saveFile.close();
+            saveFile = null;
+        }
+    }
+
+    /**
+     * Points every page at its backing array, or at the slow path if accesses
+     * to it need more than a plain array access. While OAM DMA runs, all pages
+     * below the I/O page take the slow path, which blocks them.
+     */
+    private void mapPages() {
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            readPages[page] = null;
+            writePages[page] = null;
+            romBases[page] = -1;
+        }
+        if (dmaActive)
+            return;
+        mapRomBank();
+        mapExternalRAM();
+        // VRAM writes have to sync the PPU first, so only reads are mapped
+        for (int page = VRAM_START >> 8; page <= VRAM_END >> 8; page++)
+            mapRead(page, ram, (page << 8) - RAM_START);
+        for (int page = WORK_RAM_START >> 8; page <= WORK_RAM_END >> 8; page++) {
+            mapRead(page, ram, (page << 8) - RAM_START);
+            mapWrite(page, ram, (page << 8) - RAM_START);
+        }
+        for (int page = ECHO_RAM_START >> 8; page <= ECHO_RAM_END >> 8; page++) {
+            int base = (page << 8) - ECHO_RAM_START + WORK_RAM_START - RAM_START;
+            mapRead(page, ram, base);
+            mapWrite(page, ram, base);
+        }
+    }
+
+    /**
+     * Points the pages at 0x0000-0x3FFF and 0x4000-0x7FFF at the ROM banks the
+     * controller has selected.
+     */
+    private void mapRomBank() {
+        if (dmaActive || rom == null)
+            return;
+        for (int page = ROM_BANK_0_START >> 8; page <= ROM_BANK_0_END >> 8; page++)
+            romBases[page] = lowRomBank * MemoryBankController.ROM_BANK_SIZE + (page << 8);
+        for (int page = ROM_BANK_N_START >> 8; page <= ROM_BANK_N_END >> 8; page++)
+            romBases[page] = romBank * MemoryBankController.ROM_BANK_SIZE + (page << 8) - ROM_BANK_N_START;
+    }
+
+    /**
+     * Points the pages at 0xA000-0xBFFF at the selected external RAM bank, or
+     * at the slow path when the controller has to see each access. Writes to
+     * battery-backed RAM always take the slow path so they are marked for
+     * saving.
+     */
+    private void mapExternalRAM() {
+        if (dmaActive)
+            return;
+        int offset = mbc == null ? -1 : mbc.getRamOffset();
+        byte[] cartRam = mbc == null ? null : mbc.getRAM();
+        for (int page = EXTERNAL_RAM_START >> 8; page <= EXTERNAL_RAM_END >> 8; page++) {
+            if (offset < 0) {
+                mapRead(page, null, 0);
+                mapWrite(page, null, 0);
+            } else {
+                // RAM smaller than a bank repeats across the window
+                int base = offset + (((page << 8) - EXTERNAL_RAM_START)
+                        & (Math.min(cartRam.length, MemoryBankController.RAM_BANK_SIZE) - 1));
+                mapRead(page, cartRam, base);
+                mapWrite(page, mbc.isSaved() ? null : cartRam, base);
+            }
+        }
+    }
+
+    private void mapRead(int page, byte[] backing, int base) {
+        readPages[page] = backing;
+        readBases[page] = base;
+    }
+
+    private void mapWrite(int page, byte[] backing, int base) {
+        writePages[page] = backing;
+        writeBases[page] = base;
+    }
+
+    /**
+     * Reads a byte from memory. Mapped pages are a single array or ROM buffer
+     * access; everything else goes through {@link #readSlow(int)}.
      *
      * @param address The memory address to read from.
      * @return The 8-bit value at that address.
      */
     public int read(int address) {
-        address &= 0xFFFF; // defensive
-        if (address == DuckMemory.DIV) {
-            return timerSet.getInternalCounter() >> 8;
+        int page = (address >> 8) & 0xFF;
+        int romBase = romBases[page];
+        if (romBase >= 0)
+            return rom.get(romBase + (address & 0xFF)) & 0xFF;
+        byte[] backing = readPages[page];
+        if (backing != null)
+            return backing[readBases[page] + (address & 0xFF)] & 0xFF;
+        return readSlow(address & 0xFFFF);
+    }
+
+    /**
+     * Reads a byte from an unmapped page, with special handling for echo RAM,
+     * I/O registers and the bus restriction during OAM DMA.
+     *
+     * @param address The memory address to read from.
+     * @return The 8-bit value at that address.
+     */
+    private int readSlow(int address) {
+        if (address >= IO_REGISTERS_START) {
+            IOReadHandler handler = address <= IO_REGISTERS_END ? ioReaders[address - IO_REGISTERS_START] : null;
+            return handler == null ? readRAM(address) : handler.read(address);
+        }
+        if (dmaActive) {
+            return 0xFF; // the bus is busy with OAM DMA
         }
-        if (address >= ROM_BANK_N_START && address <= ROM_BANK_N_END) {
-            // Calculate offset based on current bank
-            int offset = address - ROM_BANK_N_START;
-            int actualAddress = (romBank * 0x4000) + offset;
-            return rom[actualAddress];
+        if (address < VRAM_START) {
+            return rom.get(romOffset(address)) & 0xFF;
+        }
+        if (address >= EXTERNAL_RAM_START && address <= EXTERNAL_RAM_END) {
+            return mbc == null ? 0xFF : mbc.readRAM(address);
         }
         if (address >= ECHO_RAM_START && address <= ECHO_RAM_END) {
             int idx = (address - ECHO_RAM_START + WORK_RAM_START) & 0xFFFF;
-            return 0xFF & ram[idx];
+            return readRAM(idx);
         }
         if (address >= NOT_USABLE_START && address <= NOT_USABLE_END) {
             return 0xFF;
         }
-        return 0xFF & ram[address];
+        return readRAM(address);
     }
 
     /**
-     * Writes a byte to memory, with handling for echo RAM, DIV resets and DMA
-     * triggers.
+     * Writes a byte to memory. Mapped pages are a single array store;
+     * everything else goes through {@link #writeSlow(int, int)}.
      *
      * @param address The memory address to write to.
      * @param value   The 8-bit value to write.
      */
     public void write(int address, int value) {
-        address &= 0xFFFF; // defensive: keep 16-bit
-        value &= 0xFF; // ensure 8-bit
-        // Block writes to ROM (0x0000 - 0x7FFF)
-        if (address < 0x8000) {
-            // Handle ROM Banking (0x2000 - 0x3FFF)
-            if (address >= 0x2000 && address <= 0x3FFF) {
-                int bank = value & 0x1F; // Mask to 5 bits
-                if (bank == 0)
-                    bank = 1; // Bank 0 is always translated to 1
-                this.romBank = bank;
-                // Note: You should also mask this against totalRomBanks to avoid
-                // IndexOutOfBounds
-            }
-            // Handle RAM Banking (0x4000 - 0x5FFF)
-            else if (address >= 0x4000 && address <= 0x5FFF) {
-                // RAM bank logic (if you implement External RAM later)
-            }
+        int page = (address >> 8) & 0xFF;
+        byte[] backing = writePages[page];
+        if (backing != null) {
+            int index = writeBases[page] + (address & 0xFF);
+            backing[index] = (byte) value;
+            if (recompiler != null && backing == ram)
+                recompiler.onMemoryWrite(RAM_START + index);
             return;
         }
+        writeSlow(address & 0xFFFF, value & 0xFF);
+    }
 
+    /**
+     * Writes a byte to an unmapped page, with handling for echo RAM, I/O
+     * registers and ROM bank switching.
+     *
+     * @param address The memory address to write to.
+     * @param value   The 8-bit value to write.
+     */
+    private void writeSlow(int address, int value) {
+        if (address >= IO_REGISTERS_START) {
+            IOWriteHandler handler = address <= IO_REGISTERS_END ? ioWriters[address - IO_REGISTERS_START] : null;
+            if (handler == null)
+                writeRAM(address, value);
+            else
+                handler.write(address, value);
+            // Only high RAM can hold code; a register write must not discard it
+            if (recompiler != null && address >= HRAM_START)
+                recompiler.onMemoryWrite(address);
+            return;
+        }
+        if (dmaActive) {
+            return; // the bus is busy with OAM DMA
+        }
+        // Writes to ROM go to the bank controller's registers
+        if (address < VRAM_START) {
+            if (mbc == null)
+                return;
+            mbc.writeRegister(address, value);
+            mapExternalRAM();
+            int newLowBank = mbc.getLowRomBank();
+            int newBank = mbc.getHighRomBank();
+            if (newBank != romBank || newLowBank != lowRomBank) {
+                romBank = newBank;
+                lowRomBank = newLowBank;
+                mapRomBank();
+                if (recompiler != null)
+                    recompiler.onBankSwitch();
+            }
+            return;
+        }
+        if (address >= EXTERNAL_RAM_START && address <= EXTERNAL_RAM_END) {
+            if (mbc != null)
+                mbc.writeRAM(address, value);
+            return;
+        }
         if (address >= NOT_USABLE_START && address <= NOT_USABLE_END) {
             return;
         }
         if (address >= ECHO_RAM_START && address <= ECHO_RAM_END) {
             int idx = (address - ECHO_RAM_START + WORK_RAM_START) & 0xFFFF;
-            ram[idx] = value; // already masked
+            writeRAM(idx, value);
+            if (recompiler != null)
+                recompiler.onMemoryWrite(idx);
             return;
         }
-        if (address == DIV) {
-            timerSet.resetDIV();
+        if ((address >= VRAM_START && address <= VRAM_END) || (address >= OAM_START && address <= OAM_END)) {
+            ppu.sync(); // draw what is due before the PPU's inputs change
+            writeRAM(address, value);
+            if (address <= VRAM_END)
+                ppu.onVRAMWrite(address);
+            else
+                ppu.onOAMWrite();
             return;
         }
-        if (address == TIMA) {
-            if (timerSet.timaOverflowPending) {
-                timerSet.cancelPendingOverflow();
-            }
-        }
+        writeRAM(address, value);
+        if (recompiler != null)
+            recompiler.onMemoryWrite(address);
+    }
 
-        ram[address] = value;
+    /**
+     * Handles a write to the DMA register by blocking the bus and scheduling
+     * the transfer from the page the value selects.
+     *
+     * @param value The value written.
+     */
+    private void startDMA(int value) {
+        writeRAM(DMA, value);
+        // dma source must be based on the low 8 bits only
+        dmaSource = (value & 0xFF) << 8;
+        dmaActive = true;
+        mapPages();
+        scheduler.schedule(DuckScheduler.EventType.DMA, scheduler.now() + DMA_DURATION);
+    }
 
-        if (address == DMA) {
-            // dma source must be based on the low 8 bits only
-            dmaSource = (value & 0xFF) << 8;
-            dmaCounter = 0;
-            dmaActive = true;
+    /**
+     * Finishes an OAM DMA transfer by copying the 160 bytes from the source
+     * page into OAM in one go and releasing the bus.
+     */
+    private void completeDMA() {
+        int src = dmaSource;
+        if (src >= ECHO_RAM_START)
+            src -= ECHO_RAM_START - WORK_RAM_START; // 0xE000-0xFFFF mirror work RAM
+        ppu.sync();
+        if (src < VRAM_START) {
+            rom.get(romOffset(src), ram, OAM_START - RAM_START, 0xA0);
+        } else if (src >= EXTERNAL_RAM_START && src <= EXTERNAL_RAM_END) {
+            for (int i = 0; i < 0xA0; i++)
+                writeRAM(OAM_START + i, mbc == null ? 0xFF : mbc.readRAM(src + i));
+        } else {
+            System.arraycopy(ram, src - RAM_START, ram, OAM_START - RAM_START, 0xA0);
         }
+        ppu.onOAMWrite();
+        dmaActive = false;
+        mapPages();
     }
 
     /**
-     * Emulates a single DMA transfer cycle, copying one byte to OAM.
+     * Returns whether an OAM DMA transfer is running. The CPU can then only
+     * reach the I/O registers and high RAM.
+     *
+     * @return True while DMA is active
      */
-    public void tickDMA() {
-        if (!dmaActive)
-            return;
-
-        int dest = OAM_START + dmaCounter;
-        int src = dmaSource + dmaCounter;
-
-        // Defensive masks
-        dest &= 0xFFFF;
-        src &= 0xFFFF;
-
-        int data = read(src) & 0xFF; // read already masks, but be explicit
-        ram[dest] = data; // write into OAM area
-
-        dmaCounter++;
-        if (dmaCounter == 0xA0) {
-            dmaActive = false;
-            dmaCounter = 0;
-        }
+    public boolean isDMAActive() {
+        return dmaActive;
     }
 
     /**
@@ -323,12 +692,43 @@ public class DuckMemory {
         return read(INTERRUPT_FLAG);
     }
 
-    public void setDividerFromTimer(int value) {
-        ram[DIV] = value & 0xFF; // write RAM directly; no CPU side-effects
+    public void setLYFromPPU(int value) {
+        writeRAM(LY, value); // write RAM directly; no CPU side-effects
+    }
+
+    /**
+     * Reads a byte for the PPU, which has its own path to video memory and
+     * its registers and is not held up by OAM DMA.
+     *
+     * @param address A VRAM, OAM or LCD register address.
+     * @return The 8-bit value at that address.
+     */
+    public int readFromPPU(int address) {
+        return readRAM(address);
     }
 
-    public void setTIMAFromTimer(int value) {
-        ram[TIMA] = value & 0xFF; // write RAM directly; no CPU side-effects
+    public void setSTATFromPPU(int value) {
+        writeRAM(STAT, value); // write RAM directly; no CPU side-effects
+    }
+
+    /**
+     * Returns the unsigned byte stored in RAM for an address in 0x8000-0xFFFF.
+     *
+     * @param address The memory address.
+     * @return The 8-bit value stored there.
+     */
+    private int readRAM(int address) {
+        return ram[address - RAM_START] & 0xFF;
+    }
+
+    /**
+     * Stores a byte in RAM for an address in 0x8000-0xFFFF.
+     *
+     * @param address The memory address.
+     * @param value   The value to store; only the low 8 bits are kept.
+     */
+    private void writeRAM(int address, int value) {
+        ram[address - RAM_START] = (byte) value;
     }
 
 }
@@ -0,0 +1,66 @@
+package com.blackaby.Backend.Emulation.Memory.MBC;
+
+/**
+ * The MBC1 controller: up to 2 MB of ROM and 32 KB of RAM.
+ * <p>
+ * A 5-bit register selects the ROM bank at 0x4000 (0 reads as 1) and a 2-bit
+ * register supplies the upper ROM bank bits. In the advanced banking mode the
+ * 2-bit register also selects the RAM bank and the bank at 0x0000.
+ * </p>
+ */
+public class MBC1 extends MemoryBankController {
+    private int lowBankBits = 1;
+    private int highBankBits = 0;
+    private boolean advancedMode = false;
+
+    /**
+     * Constructs the controller.
+     *
+     * @param romBankCount The number of ROM banks.
+     * @param ramSize      The external RAM size in bytes.
+     */
+    public MBC1(int romBankCount, int ramSize) {
+        super(romBankCount, ramSize);
+    }
+
+    @Override
+    public void writeRegister(int address, int value) {
+        switch (address >> 13) {
+            case 0:
+                ramEnabled = (value & 0x0F) == 0x0A;
+                break;
+            case 1:
+                lowBankBits = value & 0x1F;
+                if (lowBankBits == 0)
+                    lowBankBits = 1;
+                break;
+            case 2:
+                highBankBits = value & 0x03;
+                break;
+            default:
+                advancedMode = (value & 0x01) != 0;
+                break;
+        }
+    }
+
+    @Override
+    public int getLowRomBank() {
+        return advancedMode ? maskRomBank(highBankBits << 5) : 0;
+    }
+
+    @Override
+    public boolean canRemapLowRomBank() {
+        // The upper bank bits only reach past bank 0 on ROMs over 512 KB
+        return romBankCount > 32;
+    }
+
+    @Override
+    public int getHighRomBank() {
+        return maskRomBank(highBankBits << 5 | lowBankBits);
+    }
+
+    @Override
+    protected int getRamBank() {
+        return advancedMode ? highBankBits : 0;
+    }
+}
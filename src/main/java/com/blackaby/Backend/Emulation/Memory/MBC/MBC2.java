@@ -0,0 +1,62 @@
+package com.blackaby.Backend.Emulation.Memory.MBC;
+
+/**
+ * The MBC2 controller: up to 256 KB of ROM and 512 half-bytes of built-in
+ * RAM.
+ * <p>
+ * Both registers sit in 0x0000-0x3FFF and are told apart by address bit 8.
+ * The RAM repeats across the whole external RAM window and only stores the
+ * low four bits of each value; the upper bits read as 1. As that cannot be
+ * served as plain bytes, every RAM access goes through this class.
+ * </p>
+ */
+public class MBC2 extends MemoryBankController {
+    private static final int RAM_SIZE = 512;
+
+    private int romBank = 1;
+
+    /**
+     * Constructs the controller.
+     *
+     * @param romBankCount The number of ROM banks.
+     */
+    public MBC2(int romBankCount) {
+        super(romBankCount, RAM_SIZE);
+    }
+
+    @Override
+    public void writeRegister(int address, int value) {
+        if (address >= ROM_BANK_SIZE)
+            return;
+        if ((address & 0x100) == 0) {
+            ramEnabled = (value & 0x0F) == 0x0A;
+        } else {
+            romBank = value & 0x0F;
+            if (romBank == 0)
+                romBank = 1;
+        }
+    }
+
+    @Override
+    public int getHighRomBank() {
+        return maskRomBank(romBank);
+    }
+
+    @Override
+    public int getRamOffset() {
+        return -1;
+    }
+
+    @Override
+    public int readRAM(int address) {
+        if (!ramEnabled)
+            return 0xFF;
+        return ram[(address - RAM_WINDOW_START) & (RAM_SIZE - 1)] | 0xF0;
+    }
+
+    @Override
+    public void writeRAM(int address, int value) {
+        if (ramEnabled)
+            storeRAM((address - RAM_WINDOW_START) & (RAM_SIZE - 1), value & 0x0F);
+    }
+}
@@ -0,0 +1,96 @@
+package com.blackaby.Backend.Emulation.Memory.MBC;
+
+/**
+ * The MBC3 controller: up to 2 MB of ROM, 32 KB of RAM and a real-time
+ * clock.
+ * <p>
+ * A 7-bit register selects the ROM bank at 0x4000 (0 reads as 1). Writing
+ * 0x00-0x03 to 0x4000-0x5FFF selects a RAM bank, while 0x08-0x0C puts one of
+ * the clock registers in the external RAM window instead; other values map
+ * nothing there. Writing 0x00 then 0x01 to 0x6000-0x7FFF latches the time
+ * into the clock registers; see {@link RealTimeClock}. Cartridges without a
+ * clock read 0xFF there.
+ * </p>
+ */
+public class MBC3 extends MemoryBankController {
+    private static final int RAM_BANK_LAST = 0x03;
+    private static final int RTC_FIRST = 0x08;
+    private static final int RTC_LAST = 0x0C;
+
+    private int romBank = 1;
+    private int ramSelect = 0;
+    private int lastLatchWrite = 0xFF;
+    private final RealTimeClock clock;
+
+    /**
+     * Constructs the controller.
+     *
+     * @param romBankCount The number of ROM banks.
+     * @param ramSize      The external RAM size in bytes.
+     * @param clock        The real-time clock, or null if the cartridge has
+     *                     none.
+     */
+    public MBC3(int romBankCount, int ramSize, RealTimeClock clock) {
+        super(romBankCount, ramSize);
+        this.clock = clock;
+    }
+
+    @Override
+    public void writeRegister(int address, int value) {
+        switch (address >> 13) {
+            case 0:
+                ramEnabled = (value & 0x0F) == 0x0A;
+                break;
+            case 1:
+                romBank = value & 0x7F;
+                if (romBank == 0)
+                    romBank = 1;
+                break;
+            case 2:
+                ramSelect = value & 0x0F;
+                break;
+            default:
+                if (clock != null && lastLatchWrite == 0x00 && value == 0x01)
+                    clock.latch();
+                lastLatchWrite = value;
+                break;
+        }
+    }
+
+    @Override
+    public int getHighRomBank() {
+        return maskRomBank(romBank);
+    }
+
+    @Override
+    protected int getRamBank() {
+        return ramSelect;
+    }
+
+    @Override
+    public int getRamOffset() {
+        return ramSelect <= RAM_BANK_LAST ? super.getRamOffset() : -1;
+    }
+
+    @Override
+    public int readRAM(int address) {
+        if (ramSelect < RTC_FIRST)
+            return super.readRAM(address);
+        if (!ramEnabled || ramSelect > RTC_LAST || clock == null)
+            return 0xFF;
+        return clock.read(ramSelect - RTC_FIRST);
+    }
+
+    @Override
+    public void writeRAM(int address, int value) {
+        if (ramSelect < RTC_FIRST)
+            super.writeRAM(address, value);
+        else if (ramEnabled && ramSelect <= RTC_LAST && clock != null)
+            clock.write(ramSelect - RTC_FIRST, value);
+    }
+
+    @Override
+    public RealTimeClock getClock() {
+        return clock;
+    }
+}
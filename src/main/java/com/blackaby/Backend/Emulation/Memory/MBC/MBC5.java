@@ -0,0 +1,47 @@
+package com.blackaby.Backend.Emulation.Memory.MBC;
+
+/**
+ * The MBC5 controller: up to 8 MB of ROM and 128 KB of RAM.
+ * <p>
+ * The ROM bank number is nine bits wide, split over 0x2000-0x2FFF (low eight
+ * bits) and 0x3000-0x3FFF (bit 8). Unlike the older controllers, bank 0 can
+ * be mapped at 0x4000.
+ * </p>
+ */
+public class MBC5 extends MemoryBankController {
+    private int romBank = 1;
+    private int ramBank = 0;
+
+    /**
+     * Constructs the controller.
+     *
+     * @param romBankCount The number of ROM banks.
+     * @param ramSize      The external RAM size in bytes.
+     */
+    public MBC5(int romBankCount, int ramSize) {
+        super(romBankCount, ramSize);
+    }
+
+    @Override
+    public void writeRegister(int address, int value) {
+        if (address < 0x2000) {
+            ramEnabled = (value & 0x0F) == 0x0A;
+        } else if (address < 0x3000) {
+            romBank = (romBank & 0x100) | value;
+        } else if (address < 0x4000) {
+            romBank = (romBank & 0xFF) | ((value & 0x01) << 8);
+        } else if (address < 0x6000) {
+            ramBank = value & 0x0F;
+        }
+    }
+
+    @Override
+    public int getHighRomBank() {
+        return maskRomBank(romBank);
+    }
+
+    @Override
+    protected int getRamBank() {
+        return ramBank;
+    }
+}
@@ -0,0 +1,198 @@
+package com.blackaby.Backend.Emulation.Memory.MBC;
+
+import com.blackaby.Backend.Emulation.Memory.SaveFile;
+
+/**
+ * Base class for the cartridge memory bank controllers.
+ * <p>
+ * A controller decodes writes to the ROM area into bank selections and owns
+ * the cartridge's external RAM. After each register write, memory asks the
+ * controller which banks are selected and repoints its page tables, so reads
+ * never have to work out a bank themselves.
+ * </p>
+ */
+public abstract class MemoryBankController {
+
+    /** Size of a ROM bank in bytes. */
+    public static final int ROM_BANK_SIZE = 0x4000;
+
+    /** Size of an external RAM bank in bytes. */
+    public static final int RAM_BANK_SIZE = 0x2000;
+
+    /** Start of the external RAM window. */
+    public static final int RAM_WINDOW_START = 0xA000;
+
+    /** Number of ROM banks; a power of two that bank numbers wrap at. */
+    protected final int romBankCount;
+
+    /** The external RAM, empty if the cartridge has none. */
+    protected final byte[] ram;
+
+    /** Whether external RAM has been enabled by writing 0x0A. */
+    protected boolean ramEnabled = false;
+
+    /** The file battery-backed RAM is persisted to, or null. */
+    private SaveFile saveFile;
+
+    /**
+     * Constructs a controller.
+     *
+     * @param romBankCount The number of ROM banks, a power of two.
+     * @param ramSize      The external RAM size in bytes, a power of two or 0.
+     */
+    protected MemoryBankController(int romBankCount, int ramSize) {
+        this.romBankCount = romBankCount;
+        this.ram = new byte[ramSize];
+    }
+
+    /**
+     * Handles a write to the control registers at 0x0000-0x7FFF.
+     *
+     * @param address The address written.
+     * @param value   The 8-bit value written.
+     */
+    public abstract void writeRegister(int address, int value);
+
+    /**
+     * Returns the ROM bank mapped to 0x0000-0x3FFF.
+     *
+     * @return The bank number.
+     */
+    public int getLowRomBank() {
+        return 0;
+    }
+
+    /**
+     * Returns whether register writes can map a bank other than 0 to
+     * 0x0000-0x3FFF.
+     *
+     * @return True if the low bank can change.
+     */
+    public boolean canRemapLowRomBank() {
+        return false;
+    }
+
+    /**
+     * Returns the ROM bank mapped to 0x4000-0x7FFF.
+     *
+     * @return The bank number.
+     */
+    public abstract int getHighRomBank();
+
+    /**
+     * Returns the selected external RAM bank.
+     *
+     * @return The bank number.
+     */
+    protected int getRamBank() {
+        return 0;
+    }
+
+    /**
+     * Returns the offset in {@link #getRAM()} of the byte seen at 0xA000, or
+     * -1 if the window cannot be served straight from RAM (RAM disabled or
+     * absent, or the controller maps something else there).
+     *
+     * @return The offset, or -1.
+     */
+    public int getRamOffset() {
+        if (!ramEnabled || ram.length == 0)
+            return -1;
+        return (getRamBank() * RAM_BANK_SIZE) % ram.length;
+    }
+
+    /**
+     * Reads a byte from the external RAM window.
+     *
+     * @param address An address in 0xA000-0xBFFF.
+     * @return The 8-bit value, or 0xFF if nothing is mapped.
+     */
+    public int readRAM(int address) {
+        int offset = getRamOffset();
+        if (offset < 0)
+            return 0xFF;
+        return ram[offset + windowIndex(address)] & 0xFF;
+    }
+
+    /**
+     * Writes a byte to the external RAM window.
+     *
+     * @param address An address in 0xA000-0xBFFF.
+     * @param value   The 8-bit value.
+     */
+    public void writeRAM(int address, int value) {
+        int offset = getRamOffset();
+        if (offset >= 0)
+            storeRAM(offset + windowIndex(address), value);
+    }
+
+    /**
+     * Stores a byte in the external RAM and marks it for saving.
+     *
+     * @param index The index in {@link #getRAM()}.
+     * @param value The value to store.
+     */
+    protected void storeRAM(int index, int value) {
+        ram[index] = (byte) value;
+        if (saveFile != null)
+            saveFile.markDirty(index);
+    }
+
+    /**
+     * Returns the cartridge's real-time clock.
+     *
+     * @return The clock, or null if the cartridge has none.
+     */
+    public RealTimeClock getClock() {
+        return null;
+    }
+
+    /**
+     * Sets the file that external RAM writes are saved to.
+     *
+     * @param saveFile The save file, or null if the RAM is not battery-backed.
+     */
+    public void setSaveFile(SaveFile saveFile) {
+        this.saveFile = saveFile;
+    }
+
+    /**
+     * Returns whether external RAM writes are saved to a file, in which case
+     * they must go through {@link #writeRAM(int, int)}.
+     *
+     * @return True if the RAM is battery-backed.
+     */
+    public boolean isSaved() {
+        return saveFile != null;
+    }
+
+    /**
+     * Returns the external RAM.
+     *
+     * @return The RAM contents, empty if the cartridge has none.
+     */
+    public byte[] getRAM() {
+        return ram;
+    }
+
+    /**
+     * Returns the position of an address within the selected RAM bank. RAM
+     * smaller than a bank repeats across the window.
+     *
+     * @param address An address in 0xA000-0xBFFF.
+     * @return The index within the bank.
+     */
+    protected int windowIndex(int address) {
+        return (address - RAM_WINDOW_START) & (Math.min(ram.length, RAM_BANK_SIZE) - 1);
+    }
+
+    /**
+     * Wraps a bank number to the banks the ROM actually has.
+     *
+     * @param bank The bank number.
+     * @return The wrapped bank number.
+     */
+    protected int maskRomBank(int bank) {
+        return bank & (romBankCount - 1);
+    }
+}
@@ -0,0 +1,197 @@
+package com.blackaby.Backend.Emulation.Memory.MBC;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.LongSupplier;
+
+/**
+ * The MBC3 real-time clock.
+ * <p>
+ * Nothing ticks: the clock keeps the time source reading at which its counter
+ * was zero, and the seconds, minutes, hours and days are only worked out when
+ * the game latches them or writes one of them. While halted the counter is
+ * held instead. The time source is wall-clock time by default, or emulated
+ * time for runs that have to be repeatable.
+ * </p>
+ * <p>
+ * The clock is saved after the cartridge RAM in the common 48-byte layout:
+ * the live and latched registers as five 32-bit values each, then the Unix
+ * time of the save. A clock loaded in wall-clock mode catches up on the time
+ * that passed while the emulator was closed.
+ * </p>
+ */
+public class RealTimeClock {
+    /** Number of bytes the clock adds to the save file. */
+    public static final int SAVE_SIZE = 48;
+
+    private static final int SECONDS = 0;
+    private static final int MINUTES = 1;
+    private static final int HOURS = 2;
+    private static final int DAYS_LOW = 3;
+    private static final int DAYS_HIGH = 4;
+    private static final int REGISTER_COUNT = 5;
+
+    private static final int HALT_BIT = 0x40;
+    private static final int CARRY_BIT = 0x80;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    private static final long DAY_LIMIT = 512;
+
+    private final LongSupplier timeSource;
+    private final boolean wallClock;
+    private long baseTime;
+    private long haltedCounter;
+    private boolean halted = false;
+    private boolean carry = false;
+    private final int[] latched = new int[REGISTER_COUNT];
+    private volatile boolean changed = false;
+
+    /**
+     * Constructs a running clock at zero.
+     *
+     * @param timeSource The time source in milliseconds.
+     * @param wallClock  Whether the time source is wall-clock time, so time
+     *                   spent closed counts when the clock is loaded.
+     */
+    public RealTimeClock(LongSupplier timeSource, boolean wallClock) {
+        this.timeSource = timeSource;
+        this.wallClock = wallClock;
+        this.baseTime = timeSource.getAsLong();
+    }
+
+    /**
+     * Latches the current time into the registers the game reads.
+     */
+    public synchronized void latch() {
+        int[] live = registers();
+        System.arraycopy(live, 0, latched, 0, REGISTER_COUNT);
+        changed = true;
+    }
+
+    /**
+     * Reads a latched clock register.
+     *
+     * @param index The register, 0 (seconds) to 4 (day high).
+     * @return The 8-bit value.
+     */
+    public int read(int index) {
+        return latched[index];
+    }
+
+    /**
+     * Writes a clock register, which sets the running time. Writing the
+     * seconds restarts the current second.
+     *
+     * @param index The register, 0 (seconds) to 4 (day high).
+     * @param value The 8-bit value.
+     */
+    public synchronized void write(int index, int value) {
+        int[] live = registers();
+        long subSecond = index == SECONDS ? 0 : counter() % 1000;
+        live[index] = value & 0xFF;
+        setRegisters(live, subSecond);
+        changed = true;
+    }
+
+    /**
+     * Returns whether the clock changed since the last call, clearing the flag.
+     *
+     * @return True if the clock needs saving.
+     */
+    public boolean takeChanged() {
+        boolean wasChanged = changed;
+        changed = false;
+        return wasChanged;
+    }
+
+    /**
+     * Writes the clock to a save file.
+     *
+     * @param buffer The save file contents.
+     * @param offset Where the clock data starts.
+     */
+    public synchronized void save(ByteBuffer buffer, int offset) {
+        ByteBuffer data = buffer.slice(offset, SAVE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int[] live = registers();
+        for (int i = 0; i < REGISTER_COUNT; i++)
+            data.putInt(i * 4, live[i]);
+        for (int i = 0; i < REGISTER_COUNT; i++)
+            data.putInt((REGISTER_COUNT + i) * 4, latched[i]);
+        data.putLong(REGISTER_COUNT * 8, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Restores the clock from a save file.
+     *
+     * @param buffer The save file contents.
+     * @param offset Where the clock data starts.
+     */
+    public synchronized void load(ByteBuffer buffer, int offset) {
+        ByteBuffer data = buffer.slice(offset, SAVE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int[] live = new int[REGISTER_COUNT];
+        for (int i = 0; i < REGISTER_COUNT; i++)
+            live[i] = data.getInt(i * 4) & 0xFF;
+        for (int i = 0; i < REGISTER_COUNT; i++)
+            latched[i] = data.getInt((REGISTER_COUNT + i) * 4) & 0xFF;
+        setRegisters(live, 0);
+        if (wallClock && !halted) {
+            long away = System.currentTimeMillis() / 1000 - data.getLong(REGISTER_COUNT * 8);
+            baseTime -= Math.max(away, 0) * 1000;
+        }
+    }
+
+    /**
+     * Returns the counter in milliseconds, folding whole 512-day periods into
+     * the carry flag.
+     *
+     * @return The milliseconds counted.
+     */
+    private long counter() {
+        long counter = halted ? haltedCounter : timeSource.getAsLong() - baseTime;
+        if (counter >= DAY_LIMIT * MILLIS_PER_DAY) {
+            long overflow = counter - counter % (DAY_LIMIT * MILLIS_PER_DAY);
+            counter -= overflow;
+            if (halted)
+                haltedCounter = counter;
+            else
+                baseTime += overflow;
+            carry = true;
+        }
+        return counter;
+    }
+
+    /**
+     * Derives the register values from the counter.
+     *
+     * @return The seconds, minutes, hours, day low and day high registers.
+     */
+    private int[] registers() {
+        long seconds = counter() / 1000;
+        long days = seconds / 86_400;
+        int[] live = new int[REGISTER_COUNT];
+        live[SECONDS] = (int) (seconds % 60);
+        live[MINUTES] = (int) (seconds / 60 % 60);
+        live[HOURS] = (int) (seconds / 3600 % 24);
+        live[DAYS_LOW] = (int) (days & 0xFF);
+        live[DAYS_HIGH] = (int) (days >> 8 & 0x01) | (halted ? HALT_BIT : 0) | (carry ? CARRY_BIT : 0);
+        return live;
+    }
+
+    /**
+     * Sets the counter from register values.
+     *
+     * @param live      The seconds, minutes, hours, day low and day high
+     *                  registers.
+     * @param subSecond The milliseconds into the current second.
+     */
+    private void setRegisters(int[] live, long subSecond) {
+        long days = live[DAYS_LOW] | (live[DAYS_HIGH] & 0x01) << 8;
+        long seconds = ((days * 24 + live[HOURS]) * 60 + live[MINUTES]) * 60 + live[SECONDS];
+        long counter = seconds * 1000 + subSecond;
+        halted = (live[DAYS_HIGH] & HALT_BIT) != 0;
+        carry = (live[DAYS_HIGH] & CARRY_BIT) != 0;
+        if (halted)
+            haltedCounter = counter;
+        else
+            baseTime = timeSource.getAsLong() - counter;
+    }
+}
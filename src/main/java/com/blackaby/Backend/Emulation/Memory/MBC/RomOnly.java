@@ -0,0 +1,29 @@
+package com.blackaby.Backend.Emulation.Memory.MBC;
+
+/**
+ * A cartridge without a bank controller: 32 KB of ROM and, optionally, up to
+ * 8 KB of RAM that is always enabled.
+ */
+public class RomOnly extends MemoryBankController {
+
+    /**
+     * Constructs the controller.
+     *
+     * @param romBankCount The number of ROM banks.
+     * @param ramSize      The external RAM size in bytes.
+     */
+    public RomOnly(int romBankCount, int ramSize) {
+        super(romBankCount, ramSize);
+        ramEnabled = true;
+    }
+
+    @Override
+    public void writeRegister(int address, int value) {
+        // No registers
+    }
+
+    @Override
+    public int getHighRomBank() {
+        return maskRomBank(1);
+    }
+}
@@ -0,0 +1,160 @@
+package com.blackaby.Backend.Emulation.Memory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.blackaby.Backend.Emulation.Memory.MBC.RealTimeClock;
+
+/**
+ * Persists battery-backed cartridge RAM to a memory-mapped .sav file.
+ * <p>
+ * The emulation keeps working on the cartridge RAM array and only marks the
+ * 256-byte page it wrote as dirty, which is a single store. A background
+ * thread copies the dirty pages into the mapped file at a fixed interval and
+ * forces just those ranges to disk, so a flush costs as much as what changed
+ * and the emulation thread never waits on I/O. {@link #close()} runs a last
+ * flush when the emulation stops.
+ * </p>
+ * <p>
+ * An MBC3 clock is stored after the RAM and rewritten whenever it was set or
+ * latched since the last flush.
+ * </p>
+ */
+public class SaveFile {
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private final byte[] ram;
+    private final RealTimeClock clock;
+    private final FileChannel channel;
+    private final MappedByteBuffer file;
+    // One flag per page; set by the emulation thread after the write, cleared
+    // by the flusher before it copies, so a write during a copy is not lost
+    private final AtomicIntegerArray dirtyPages;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Opens or creates the save file, loads its contents into the cartridge RAM
+     * and starts flushing in the background.
+     *
+     * @param path           The path to the .sav file.
+     * @param ram            The cartridge RAM to persist.
+     * @param clock          The cartridge clock to persist, or null.
+     * @param intervalMillis The time between background flushes, above 0.
+     * @return The open save file.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public static SaveFile open(Path path, byte[] ram, RealTimeClock clock, long intervalMillis)
+            throws IOException {
+        SaveFile saveFile = new SaveFile(path, ram, clock);
+        saveFile.flusher.scheduleWithFixedDelay(saveFile::flush, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+        return saveFile;
+    }
+
+    /**
+     * Opens or creates the save file and loads its contents into the cartridge
+     * RAM. Flushing is started by {@link #open}.
+     *
+     * @param path  The path to the .sav file.
+     * @param ram   The cartridge RAM to persist.
+     * @param clock The cartridge clock to persist, or null.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    private SaveFile(Path path, byte[] ram, RealTimeClock clock) throws IOException {
+        this.ram = ram;
+        this.clock = clock;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        long savedSize = channel.size();
+        int size = ram.length + (clock == null ? 0 : RealTimeClock.SAVE_SIZE);
+        // Mapping past the end grows a new or short file to the full size
+        this.file = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        file.get(0, ram);
+        if (clock != null) {
+            if (savedSize >= size)
+                clock.load(file, ram.length);
+            else
+                clock.save(file, ram.length);
+        }
+        this.dirtyPages = new AtomicIntegerArray((ram.length + PAGE_SIZE - 1) >> PAGE_SHIFT);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Save flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Marks the page holding a cartridge RAM byte as changed. Call after the
+     * byte has been written.
+     *
+     * @param index The index of the byte in the cartridge RAM.
+     */
+    public void markDirty(int index) {
+        dirtyPages.lazySet(index >> PAGE_SHIFT, 1);
+    }
+
+    /**
+     * Copies every dirty page into the file and forces each run of adjacent
+     * pages to disk, then saves the clock if it changed.
+     */
+    public void flush() {
+        flush(false);
+    }
+
+    /**
+     * Writes out the dirty pages and the clock.
+     *
+     * @param saveClock Whether to save the clock even if it was not changed,
+     *                  so its running time is current in the file.
+     */
+    private synchronized void flush(boolean saveClock) {
+        if (clock != null && (clock.takeChanged() || saveClock)) {
+            clock.save(file, ram.length);
+            file.force(ram.length, RealTimeClock.SAVE_SIZE);
+        }
+        int pageCount = dirtyPages.length();
+        int page = 0;
+        while (page < pageCount) {
+            if (dirtyPages.getAndSet(page, 0) == 0) {
+                page++;
+                continue;
+            }
+            int runStart = page << PAGE_SHIFT;
+            do {
+                int offset = page << PAGE_SHIFT;
+                file.put(offset, ram, offset, Math.min(PAGE_SIZE, ram.length - offset));
+                page++;
+            } while (page < pageCount && dirtyPages.getAndSet(page, 0) != 0);
+            int runEnd = Math.min(page << PAGE_SHIFT, ram.length);
+            file.force(runStart, runEnd - runStart);
+        }
+    }
+
+    /**
+     * Stops the background flushes, writes out what is still dirty and closes
+     * the file.
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(true);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
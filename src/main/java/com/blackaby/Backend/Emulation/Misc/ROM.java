@@ -1,25 +1,36 @@
 package com.blackaby.Backend.Emulation.Misc;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
 import java.io.File;
 
 /**
  * Represents a Game Boy ROM file.
  * <p>
- * Loads the contents of the ROM from disk and provides access to the ROM's
- * binary data and metadata (filename, display name).
+ * Maps the ROM file into memory read-only and provides access to the ROM's
+ * binary data and metadata (filename, display name). Every ROM opened on the
+ * same unchanged file shares one mapping, so the data is not copied onto the
+ * heap and further instances start without reading the file again.
  * </p>
  */
 public class ROM {
+    // Mappings by path, size and modification time; held weakly so a mapping
+    // is released once no ROM uses it
+    private static final HashMap<String, WeakReference<ByteBuffer>> MAPPINGS = new HashMap<>();
+
     private String filename;
-    private int data[];
+    private ByteBuffer data;
 
     /**
      * Constructs a ROM object with the given file path.
-     * Automatically loads the ROM data into memory.
+     * Automatically maps the ROM data into memory.
      *
      * @param filename The path to the ROM file.
      */
@@ -27,27 +38,85 @@ public class ROM {
         this.filename = filename;
         if (!filename.isEmpty()) {
             try {
-                byte[] fileBytes = Files.readAllBytes(Paths.get(filename));
-                data = new int[fileBytes.length];
-                for (int i = 0; i < fileBytes.length; i++) {
-                    data[i] = fileBytes[i] & 0xFF;
-                }
+                data = map(Paths.get(filename));
             } catch (IOException e) {
                 e.printStackTrace();
-                data = new int[0];
+                data = ByteBuffer.allocate(0).asReadOnlyBuffer();
             }
         }
     }
 
     /**
-     * Returns the raw ROM data as an array of unsigned 8-bit values.
+     * Returns the shared read-only mapping of a ROM file, mapping it if no ROM
+     * currently holds it.
      *
-     * @return An array containing the ROM contents.
+     * @param path The path to the ROM file.
+     * @return The mapped file contents.
+     * @throws IOException If the file cannot be opened or mapped.
      */
-    public int[] getData() {
+    private static ByteBuffer map(Path path) throws IOException {
+        Path file = path.toRealPath();
+        String key = file + ":" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+        synchronized (MAPPINGS) {
+            WeakReference<ByteBuffer> cached = MAPPINGS.get(key);
+            ByteBuffer buffer = cached == null ? null : cached.get();
+            if (buffer == null) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                MAPPINGS.values().removeIf(reference -> reference.get() == null);
+                MAPPINGS.put(key, new WeakReference<>(buffer));
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Returns the raw ROM data. The buffer is shared with every other ROM on
+     * the same file, so only its absolute get methods may be used; mask the
+     * bytes with 0xFF or use {@link #read(int)} for unsigned values.
+     *
+     * @return A read-only buffer holding the ROM contents.
+     */
+    public ByteBuffer getData() {
         return data;
     }
 
+    /**
+     * Returns the size of the ROM in bytes.
+     *
+     * @return The ROM size.
+     */
+    public int size() {
+        return data.capacity();
+    }
+
+    /**
+     * Returns the unsigned byte at the given offset in the ROM file.
+     *
+     * @param offset The offset into the ROM.
+     * @return The 8-bit value at that offset.
+     */
+    public int read(int offset) {
+        return data.get(offset) & 0xFF;
+    }
+
+    /**
+     * Returns the path of the battery save file for this ROM: the ROM path
+     * with its extension replaced by .sav.
+     *
+     * @return The save file path.
+     */
+    public Path getSavePath() {
+        Path path = Paths.get(filename);
+        String name = path.getFileName().toString();
+        int dotIndex = name.lastIndexOf('.');
+        if (dotIndex != -1) {
+            name = name.substring(0, dotIndex);
+        }
+        return path.resolveSibling(name + ".sav");
+    }
+
     /**
      * Returns the display name of the ROM file (without path or extension).
      *
@@ -0,0 +1,89 @@
+package com.blackaby.Backend.Emulation.Peripherals;
+
+import java.util.function.IntConsumer;
+
+import com.blackaby.Backend.Emulation.DuckScheduler;
+import com.blackaby.Backend.Emulation.CPU.DuckCPU;
+import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+import com.blackaby.Frontend.DebugLogger;
+
+/**
+ * Emulates the serial port with no link partner attached.
+ * <p>
+ * Writing SC with both the start and internal clock bits set begins a
+ * transfer. It completes eight bit periods later, at which point the byte in
+ * SB is passed to the output sink, SB reads 0xFF (nothing was shifted in), the
+ * start bit clears and the SERIAL interrupt is requested. A transfer on the
+ * external clock never completes, as there is no partner to drive it.
+ * </p>
+ */
+public class DuckSerial implements DuckScheduler.EventHandler {
+    /** T-cycles per bit at the internal 8192 Hz clock. */
+    public static final int BIT_CYCLES = 512;
+
+    private final DuckMemory memory;
+    private final DuckCPU cpu;
+    private final DuckScheduler scheduler;
+    private IntConsumer output = DebugLogger::serialOutput;
+
+    /**
+     * Constructs the serial port with no transfer in progress. The caller
+     * registers it as the scheduler's SERIAL event handler and then calls
+     * {@link #registerIOHandlers()}.
+     *
+     * @param cpu       The CPU to request the SERIAL interrupt on
+     * @param memory    The memory holding SB and SC
+     * @param scheduler The scheduler to book transfer completions with
+     */
+    public DuckSerial(DuckCPU cpu, DuckMemory memory, DuckScheduler scheduler) {
+        this.cpu = cpu;
+        this.memory = memory;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Routes writes to SC through the serial port, so they can start a
+     * transfer.
+     */
+    public void registerIOHandlers() {
+        memory.setIOHandlers(DuckMemory.SERIAL_CONTROL, null, (_, value) -> {
+            memory.setIORegister(DuckMemory.SERIAL_CONTROL, value);
+            onSCWrite(value);
+        });
+    }
+
+    /**
+     * Sets where transferred bytes are sent. The default appends them to the
+     * serial output file through {@link DebugLogger}.
+     *
+     * @param output The sink for transferred bytes
+     */
+    public void setOutput(IntConsumer output) {
+        this.output = output;
+    }
+
+    /**
+     * Handles a write to SC, starting or abandoning a transfer.
+     *
+     * @param value The value written
+     */
+    public void onSCWrite(int value) {
+        if ((value & 0x81) == 0x81)
+            scheduler.schedule(DuckScheduler.EventType.SERIAL, scheduler.now() + 8 * BIT_CYCLES);
+        else
+            scheduler.cancel(DuckScheduler.EventType.SERIAL);
+    }
+
+    /**
+     * Completes the transfer in progress.
+     *
+     * @param time The cycle the last bit was shifted out
+     */
+    @Override
+    public void handleEvent(long time) {
+        output.accept(memory.read(DuckMemory.SERIAL_DATA));
+        memory.write(DuckMemory.SERIAL_DATA, 0xFF);
+        memory.write(DuckMemory.SERIAL_CONTROL, memory.read(DuckMemory.SERIAL_CONTROL) & ~0x80);
+        cpu.requestInterrupt(DuckCPU.Interrupt.SERIAL);
+    }
+}
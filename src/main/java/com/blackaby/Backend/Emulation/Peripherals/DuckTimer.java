@@ -1,89 +1,271 @@
 package com.blackaby.Backend.Emulation.Peripherals;
 
+import com.blackaby.Backend.Emulation.DuckScheduler;
 import com.blackaby.Backend.Emulation.CPU.DuckCPU;
 import com.blackaby.Backend.Emulation.Memory.DuckMemory;
 
-public class DuckTimer {
-    private int internalCounter = 0;
-    private boolean previousTimerBit = false;
-    private int overflowCounter = 0;
+/**
+ * Emulates the DIV/TIMA timer.
+ * <p>
+ * The 16-bit internal counter is worked out from the cycle it was last reset
+ * at, so DIV costs nothing until it is read. TIMA increments on each falling
+ * edge of the counter bit selected by TAC, and those edges are just as
+ * predictable: TIMA is kept as its value at a reference cycle plus the number
+ * of edges since, and is only brought up to date when DIV, TIMA or TAC is
+ * written. The timer schedules an event for the edge that overflows TIMA and
+ * for the TMA reload four cycles after it, rather than for every increment.
+ * </p>
+ */
+public class DuckTimer implements DuckScheduler.EventHandler {
+    private static final int OVERFLOW_DELAY = 4;
+
+    private int counterBase = 0;
+    private long baseTime;
+    private int timaValue = 0;
+    private long timaTime;
+    private long glitchTime = DuckScheduler.IDLE;
+    private long overflowTime = DuckScheduler.IDLE;
+    private long reloadTime = DuckScheduler.IDLE;
     public boolean timaOverflowPending = false;
     private final DuckMemory memory;
     private final DuckCPU cpu;
+    private final DuckScheduler scheduler;
 
-    public DuckTimer(DuckCPU cpu, DuckMemory memory) {
+    /**
+     * Constructs the timer with its counter starting at the current cycle.
+     *
+     * @param cpu       The CPU to request the TIMER interrupt on
+     * @param memory    The memory holding the timer registers
+     * @param scheduler The scheduler to book overflows with; the caller
+     *                  registers the timer as its TIMER event handler and
+     *                  then calls {@link #registerIOHandlers()}
+     */
+    public DuckTimer(DuckCPU cpu, DuckMemory memory, DuckScheduler scheduler) {
         this.cpu = cpu;
         this.memory = memory;
+        this.scheduler = scheduler;
+        this.baseTime = scheduler.now();
+        this.timaTime = baseTime;
+    }
+
+    /**
+     * Routes accesses to DIV, TIMA and TAC through the timer, which works
+     * their values out from the cycle count.
+     */
+    public void registerIOHandlers() {
+        memory.setIOHandlers(DuckMemory.DIV, _ -> getInternalCounter() >> 8, (_, _) -> resetDIV());
+        memory.setIOHandlers(DuckMemory.TIMA, _ -> getTIMA(), (_, value) -> writeTIMA(value));
+        memory.setIOHandlers(DuckMemory.TAC, null, (_, value) -> {
+            int oldTac = memory.getIORegister(DuckMemory.TAC);
+            memory.setIORegister(DuckMemory.TAC, value);
+            onTACWrite(oldTac, value);
+        });
     }
 
-    public void tick() {
-        if (overflowCounter > 0) {
-            overflowCounter--;
-            if (overflowCounter == 0 && timaOverflowPending) {
-                memory.setTIMAFromTimer(memory.read(DuckMemory.TMA));
+    /**
+     * Runs a TMA reload, a TAC glitch increment or a TIMA overflow that has
+     * fallen due.
+     *
+     * @param time The cycle the event was scheduled for
+     */
+    @Override
+    public void handleEvent(long time) {
+        int tac = memory.read(DuckMemory.TAC);
+        if (time == reloadTime) {
+            reloadTime = DuckScheduler.IDLE;
+            if (timaOverflowPending) {
+                timaValue = memory.read(DuckMemory.TMA) & 0xFF;
+                timaTime = time;
                 cpu.requestInterrupt(DuckCPU.Interrupt.TIMER);
                 timaOverflowPending = false;
             }
         }
-        internalCounter = (internalCounter + 1) & 0xFFFF;
-        memory.setDividerFromTimer((internalCounter >> 8) & 0xFF);
+        if (time == glitchTime) {
+            glitchTime = DuckScheduler.IDLE;
+            syncTIMA(tac, time);
+            incrementTIMA(time);
+        }
+        if (time == overflowTime) {
+            // The edge that takes TIMA from 0xFF to 0x00
+            timaValue = 0x00;
+            timaTime = time;
+            timaOverflowPending = true;
+            reloadTime = time + OVERFLOW_DELAY;
+        }
+        overflowTime = nextOverflow(tac);
+        reschedule();
+    }
 
-        updateTIMA();
+    /**
+     * Increments TIMA, starting the delayed reload when it overflows.
+     *
+     * @param time The cycle of the increment
+     */
+    private void incrementTIMA(long time) {
+        if (timaValue == 0xFF) {
+            timaValue = 0x00;
+            timaOverflowPending = true;
+            reloadTime = time + OVERFLOW_DELAY;
+        } else {
+            timaValue++;
+        }
     }
 
-    private void updateTIMA() {
+    /**
+     * Returns the current value of TIMA.
+     *
+     * @return The 8-bit TIMA value
+     */
+    public int getTIMA() {
+        return timaAt(memory.read(DuckMemory.TAC), scheduler.now());
+    }
+
+    /**
+     * Handles a write to TIMA. Writing while a reload is pending cancels it.
+     *
+     * @param value The value written
+     */
+    public void writeTIMA(int value) {
         int tac = memory.read(DuckMemory.TAC);
-        // if (tac != 0)
-        // System.out.println("Updating TIMA at cycle " + internalCounter + ", TAC: " +
-        // String.format("0x%02X", tac));
-        boolean timerEnabled = (tac & 0x04) != 0;
-        int monitoredBit = getMonitoredBit(tac);
-
-        boolean currentTimerBit = timerEnabled && ((internalCounter & (1 << monitoredBit)) != 0);
-
-        if (previousTimerBit && !currentTimerBit) {
-            int tima = memory.read(DuckMemory.TIMA) & 0xFF;
-            if (tima == 0xFF) {
-                memory.setTIMAFromTimer(0x00);
-                timaOverflowPending = true;
-                overflowCounter = 4;
-            } else {
-                memory.setTIMAFromTimer((tima + 1) & 0xFF);
-            }
+        long now = scheduler.now();
+        syncTIMA(tac, now);
+        timaValue = value & 0xFF;
+        if (timaOverflowPending) {
+            timaOverflowPending = false;
+            reloadTime = DuckScheduler.IDLE;
         }
-
-        previousTimerBit = currentTimerBit;
+        overflowTime = nextOverflow(tac);
+        reschedule();
     }
 
     public void resetDIV() {
         int tac = memory.read(DuckMemory.TAC);
-        boolean timerEnabled = (tac & 0x04) != 0;
-        int monitoredBit = getMonitoredBit(tac);
-
-        boolean wasOne = timerEnabled && ((internalCounter & (1 << monitoredBit)) != 0);
+        long now = scheduler.now();
+        syncTIMA(tac, now);
 
-        if (wasOne) {
-            int tima = memory.read(DuckMemory.TIMA) & 0xFF;
-            if (tima == 0xFF) {
+        if (timerBit(tac, counterAt(now))) {
+            if (timaValue == 0xFF) {
                 timaOverflowPending = true;
-                overflowCounter = 4;
+                reloadTime = now + OVERFLOW_DELAY;
             } else {
-                memory.write(DuckMemory.TIMA, (tima + 1) & 0xFF);
+                timaValue++;
+                if (timaOverflowPending) {
+                    timaOverflowPending = false;
+                    reloadTime = DuckScheduler.IDLE;
+                }
             }
         }
-        internalCounter = 0;
-        previousTimerBit = false;
+        counterBase = 0;
+        baseTime = now;
+        timaTime = now;
+        overflowTime = nextOverflow(tac);
+        reschedule();
     }
 
-    public void syncTimerBit() {
-        int tac = memory.read(DuckMemory.TAC);
-        boolean timerEnabled = (tac & 0x04) != 0;
-        int monitoredBit = getMonitoredBit(tac);
-        previousTimerBit = timerEnabled && ((internalCounter & (1 << monitoredBit)) != 0);
+    /**
+     * Handles a write to TAC. Switching the selected bit or disabling the
+     * timer while the selected bit is high counts as a falling edge, so TIMA
+     * increments on the next cycle.
+     *
+     * @param oldTac The previous TAC value
+     * @param newTac The value written
+     */
+    public void onTACWrite(int oldTac, int newTac) {
+        long now = scheduler.now();
+        syncTIMA(oldTac, now);
+        int counter = counterAt(now);
+        if (timerBit(oldTac, counter) && !timerBit(newTac, (counter + 1) & 0xFFFF))
+            glitchTime = now + 1;
+        // Edges under the new TAC are counted from the next cycle on
+        timaTime = now + 1;
+        overflowTime = nextOverflow(newTac);
+        reschedule();
     }
 
     public int getInternalCounter() {
-        return internalCounter;
+        return counterAt(scheduler.now());
+    }
+
+    /**
+     * Returns the value of the internal counter at the given cycle.
+     *
+     * @param time The cycle
+     * @return The 16-bit counter value
+     */
+    private int counterAt(long time) {
+        return (int) ((counterBase + time - baseTime) & 0xFFFF);
+    }
+
+    /**
+     * Returns the value of TIMA at the given cycle, counting the falling edges
+     * since the reference cycle.
+     *
+     * @param tac  The TAC value in effect since the reference cycle
+     * @param time The cycle
+     * @return The 8-bit TIMA value
+     */
+    private int timaAt(int tac, long time) {
+        if ((tac & 0x04) == 0 || time <= timaTime)
+            return timaValue;
+        int shift = getMonitoredBit(tac) + 1;
+        long edges = (counterBase + time - baseTime >> shift) - (counterBase + timaTime - baseTime >> shift);
+        return (int) ((timaValue + edges) & 0xFF);
+    }
+
+    /**
+     * Moves the TIMA reference cycle forward to the given cycle.
+     *
+     * @param tac  The TAC value in effect since the reference cycle
+     * @param time The new reference cycle
+     */
+    private void syncTIMA(int tac, long time) {
+        if (time <= timaTime)
+            return;
+        timaValue = timaAt(tac, time);
+        timaTime = time;
+    }
+
+    /**
+     * Returns the cycle of the falling edge that will overflow TIMA, or IDLE if
+     * the timer is disabled.
+     *
+     * @param tac The TAC value
+     * @return The cycle of the overflowing edge
+     */
+    private long nextOverflow(int tac) {
+        if ((tac & 0x04) == 0)
+            return DuckScheduler.IDLE;
+        int period = 2 << getMonitoredBit(tac);
+        long firstEdge = timaTime + period - (counterAt(timaTime) & (period - 1));
+        // A pending glitch increment lands on timaTime, before the first edge
+        int edgesNeeded = 0x100 - timaValue - (glitchTime == DuckScheduler.IDLE ? 0 : 1);
+        if (edgesNeeded <= 0)
+            return DuckScheduler.IDLE; // the glitch increment overflows instead
+        return firstEdge + (long) (edgesNeeded - 1) * period;
+    }
+
+    /**
+     * Returns whether the counter bit selected by TAC is high while the timer
+     * is enabled.
+     *
+     * @param tac     The TAC value
+     * @param counter The internal counter value
+     * @return True if the timer input is high
+     */
+    private boolean timerBit(int tac, int counter) {
+        return (tac & 0x04) != 0 && (counter & (1 << getMonitoredBit(tac))) != 0;
+    }
+
+    /**
+     * Schedules the timer event for the earliest of the pending glitch
+     * increment, overflow and reload.
+     */
+    private void reschedule() {
+        long next = Math.min(glitchTime, Math.min(overflowTime, reloadTime));
+        if (next == DuckScheduler.IDLE)
+            scheduler.cancel(DuckScheduler.EventType.TIMER);
+        else
+            scheduler.schedule(DuckScheduler.EventType.TIMER, next);
     }
 
     private int getMonitoredBit(int tac) {
@@ -95,9 +277,4 @@ public class DuckTimer {
             default -> 9;
         };
     }
-
-    public void cancelPendingOverflow() {
-        timaOverflowPending = false;
-        overflowCounter = 0;
-    }
 }
@@ -98,6 +98,7 @@ public class GUIActions implements ActionListener {
                 int result = JOptionPane.showConfirmDialog(mainWindow, "Are you sure you want to exit?", "Exit",
                         JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
                 if (result == JOptionPane.YES_OPTION) {
+                    attachedEmulation.shutdown();
                     System.exit(0);
                 }
             }
@@ -1,13 +1,18 @@
 package com.blackaby.Frontend;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 
 public class DebugLogger {
     public static final String LOG_FILE = "debugoutput.txt";
     public static final String SERIAL_FILE = "serialoutput.txt";
 
+    private static OutputStream serialStream;
+
     public static void log(String message) {
         System.out.print(message);
         // logFile(message, LOG_FILE);
@@ -26,7 +31,36 @@ public class DebugLogger {
         DebugLogger.log(message + "\n");
     }
 
-    public static void serialOutput(int byteToPrint) {
-        logFile(Character.toString((char) (byteToPrint & 0xFF)), SERIAL_FILE);
+    /**
+     * Appends a byte sent over the serial port to the serial output file. The
+     * file is opened once and buffered, and is flushed at each line break and
+     * when the emulation stops.
+     *
+     * @param byteToPrint The byte sent
+     */
+    public static synchronized void serialOutput(int byteToPrint) {
+        try {
+            if (serialStream == null)
+                serialStream = new BufferedOutputStream(new FileOutputStream(SERIAL_FILE, true));
+            serialStream.write(byteToPrint & 0xFF);
+            if ((byteToPrint & 0xFF) == '\n')
+                serialStream.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes out any buffered serial output and closes the file.
+     */
+    public static synchronized void flushSerialOutput() {
+        if (serialStream == null)
+            return;
+        try {
+            serialStream.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        serialStream = null;
     }
 }
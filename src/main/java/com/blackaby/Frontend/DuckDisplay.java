@@ -2,15 +2,19 @@ package com.blackaby.Frontend;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.util.Arrays;
 import javax.swing.*;
 import com.blackaby.Backend.Emulation.Misc.Specifics;
 
 /**
  * A custom JPanel for rendering Game Boy display output.
  * Handles pixel manipulation, image scaling, and drawing logic.
+ * The PPU writes packed RGB values straight into the image's pixel array,
+ * see {@link #getPixels()}.
  */
 public class DuckDisplay extends JPanel {
     private BufferedImage image;
+    private int[] pixels;
 
     /**
      * Constructs a DuckDisplay with a black background and
@@ -21,6 +25,18 @@ public class DuckDisplay extends JPanel {
         setBackground(Color.BLACK);
         // Initialize image with default size
         image = new BufferedImage(Specifics.GB_DISPLAY_WIDTH, Specifics.GB_DISPLAY_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the pixels of the display image as packed 0xRRGGBB values, row
+     * by row, {@link Specifics#GB_DISPLAY_WIDTH} to a row. Writes show on the
+     * next repaint.
+     *
+     * @return The pixel array backing the image
+     */
+    public int[] getPixels() {
+        return pixels;
     }
 
     /**
@@ -34,7 +50,7 @@ public class DuckDisplay extends JPanel {
      */
     public void setPixel(int x, int y, Color color, boolean repaint) {
         if (image != null && x >= 0 && x < image.getWidth() && y >= 0 && y < image.getHeight()) {
-            image.setRGB(x, y, color.getRGB());
+            pixels[y * image.getWidth() + x] = color.getRGB();
             if (repaint) {
                 repaint();
             }
@@ -82,11 +98,7 @@ public class DuckDisplay extends JPanel {
      * then repaints the component.
      */
     public void clear() {
-        for (int x = 0; x < Specifics.GB_DISPLAY_WIDTH; x++) {
-            for (int y = 0; y < Specifics.GB_DISPLAY_HEIGHT; y++) {
-                setPixel(x, y, Color.BLACK, false);
-            }
-        }
+        Arrays.fill(pixels, Color.BLACK.getRGB());
         repaint();
     }
 
@@ -134,6 +146,7 @@ public class DuckDisplay extends JPanel {
                 g2d.dispose();
             }
             image = newImage;
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
             repaint();
         }
     }
@@ -83,6 +83,8 @@ public class MainWindow extends DuckWindow {
 
         // Attach the emulation
         emulation = new DuckEmulation(this, display);
+        // Closing the window or System.exit still writes out battery saves
+        Runtime.getRuntime().addShutdownHook(new Thread(emulation::shutdown, "Emulation shutdown"));
 
         // Initialising the menu bar
         JMenuBar menuBar = new JMenuBar();
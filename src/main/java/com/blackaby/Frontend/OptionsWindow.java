@@ -156,5 +156,6 @@ public class OptionsWindow extends DuckWindow {
             case 2 -> Settings.GB_COLOR_2_OBJ = new GBColor(hex);
             case 3 -> Settings.GB_COLOR_3_OBJ = new GBColor(hex);
         }
+        Settings.updateShades();
     }
 }
@@ -9,6 +9,33 @@ import com.blackaby.Backend.Emulation.Graphics.GBColor;
  * screen.
  */
 public class Settings {
+
+    /**
+     * The CPU engines that can run the emulation.
+     * INSTRUCTION decodes each opcode to an Instruction object, SWITCH runs the
+     * whole instruction set in a single switch over the opcode, RECOMPILER
+     * translates basic blocks to JVM bytecode and caches them.
+     */
+    public enum CPUEngine {
+        INSTRUCTION, SWITCH, RECOMPILER;
+
+        /**
+         * Returns the engine with the given name, ignoring case.
+         * Falls back to INSTRUCTION when the name is missing or unknown.
+         *
+         * @param name The engine name
+         * @return The matching engine
+         */
+        public static CPUEngine fromName(String name) {
+            for (CPUEngine engine : values()) {
+                if (engine.name().equalsIgnoreCase(name)) {
+                    return engine;
+                }
+            }
+            return INSTRUCTION;
+        }
+    }
+
     public static final String GB_COLOR_0 = "#E0F8D0";
     public static final String GB_COLOR_1 = "#88C070";
     public static final String GB_COLOR_2 = "#346856";
@@ -19,10 +46,79 @@ public class Settings {
     public static GBColor GB_COLOR_2_OBJ = new GBColor(GB_COLOR_2);
     public static GBColor GB_COLOR_3_OBJ = new GBColor(GB_COLOR_3);
 
+    /**
+     * The CPU engine used when a ROM is started.
+     * Selected at startup with -Dgameduck.cpu=instruction|switch|recompiler.
+     */
+    public static CPUEngine CPU_ENGINE = CPUEngine.fromName(System.getProperty("gameduck.cpu"));
+
+    /**
+     * Whether the CPU records ALU results and only works out the flags when
+     * they are read. Disabled at startup with -Dgameduck.lazyFlags=false.
+     */
+    public static boolean LAZY_FLAGS = !"false".equalsIgnoreCase(System.getProperty("gameduck.lazyFlags"));
+
+    /**
+     * Milliseconds between background flushes of battery-backed cartridge RAM
+     * to its .sav file. Set at startup with -Dgameduck.saveInterval=millis.
+     */
+    public static long SAVE_FLUSH_INTERVAL = readSaveFlushInterval();
+
+    /**
+     * Whether the MBC3 clock counts emulated time instead of wall-clock time,
+     * so headless runs are repeatable. Set at startup with
+     * -Dgameduck.rtc=emulated.
+     */
+    public static boolean RTC_EMULATED_TIME = "emulated".equalsIgnoreCase(System.getProperty("gameduck.rtc"));
+
+    /**
+     * Reads the save flush interval, rejecting values the flusher cannot be
+     * scheduled with.
+     *
+     * @return The interval in milliseconds
+     * @throws IllegalArgumentException If the interval is not above 0
+     */
+    private static long readSaveFlushInterval() {
+        long interval = Long.getLong("gameduck.saveInterval", 1000);
+        if (interval <= 0)
+            throw new IllegalArgumentException(
+                    "gameduck.saveInterval must be a positive number of milliseconds, got " + interval);
+        return interval;
+    }
+
+    // The four colours packed as RGB. A change publishes a new array, so the
+    // emulation thread always sees a complete set.
+    private static volatile int[] shades = buildShades();
+
+    /**
+     * Returns the four screen colours as packed 0xRRGGBB values, lightest
+     * first. The array is replaced, never modified, when a colour changes.
+     *
+     * @return The current shades
+     */
+    public static int[] getShades() {
+        return shades;
+    }
+
+    /**
+     * Publishes the GB_COLOR_n_OBJ fields to the renderer. Call after
+     * changing any of them.
+     */
+    public static void updateShades() {
+        shades = buildShades();
+    }
+
+    private static int[] buildShades() {
+        return new int[] {
+                GB_COLOR_0_OBJ.toRGB(), GB_COLOR_1_OBJ.toRGB(), GB_COLOR_2_OBJ.toRGB(), GB_COLOR_3_OBJ.toRGB()
+        };
+    }
+
     public static void reset() {
         GB_COLOR_0_OBJ = new GBColor(GB_COLOR_0);
         GB_COLOR_1_OBJ = new GBColor(GB_COLOR_1);
         GB_COLOR_2_OBJ = new GBColor(GB_COLOR_2);
         GB_COLOR_3_OBJ = new GBColor(GB_COLOR_3);
+        updateShades();
     }
 }
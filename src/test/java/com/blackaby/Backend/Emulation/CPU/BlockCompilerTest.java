@@ -0,0 +1,185 @@
+package com.blackaby.Backend.Emulation.CPU;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.blackaby.Backend.Emulation.DuckScheduler;
+import com.blackaby.Backend.Emulation.Memory.DuckMemory;
+import com.blackaby.Backend.Emulation.Misc.ROM;
+import com.blackaby.Backend.Emulation.Peripherals.DuckTimer;
+import com.blackaby.Frontend.DuckDisplay;
+import com.blackaby.Misc.Settings;
+
+/**
+ * Checks that compiled blocks leave the registers, memory and cycle count as
+ * the switch interpreter does: every instruction on its own, then random
+ * straight-line blocks, where flags are only worked out when read.
+ */
+public class BlockCompilerTest {
+    private static final int CODE_START = 0x0150;
+    private static final int STATES_PER_INSTRUCTION = 4;
+    private static final Set<Integer> UNKNOWN = Set.of(0xD3, 0xDB, 0xDD, 0xE3, 0xE4, 0xEB, 0xEC, 0xED, 0xF4,
+            0xFC, 0xFD);
+    // Instructions that end a block, so only appear last
+    private static final Set<Integer> BLOCK_ENDS = Set.of(0x10, 0x18, 0x20, 0x28, 0x30, 0x38, 0x76, 0xC0, 0xC2,
+            0xC3, 0xC4, 0xC7, 0xC8, 0xC9, 0xCA, 0xCC, 0xCD, 0xCF, 0xD0, 0xD2, 0xD4, 0xD7, 0xD8, 0xD9, 0xDA, 0xDC,
+            0xDF, 0xE7, 0xE9, 0xEF, 0xF3, 0xF7, 0xFB, 0xFF);
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    public void blocksMatchSwitchCore(boolean lazyFlags, @TempDir Path directory) throws Exception {
+        Random random = new Random(4);
+        byte[] rom = new byte[0x8000];
+        List<int[]> blocks = new ArrayList<>();
+        int address = CODE_START;
+        for (int opcode = 0; opcode < 0x200; opcode++) {
+            if (opcode == 0xCB || UNKNOWN.contains(opcode))
+                continue;
+            int[] block = { opcode };
+            for (int state = 0; state < STATES_PER_INSTRUCTION; state++) {
+                blocks.add(block);
+                address = place(rom, address, block, random);
+            }
+        }
+        while (address < rom.length - 32 * 3) {
+            int[] block = new int[1 + random.nextInt(DuckRecompiler.MAX_BLOCK_LENGTH)];
+            for (int i = 0; i < block.length; i++) {
+                int opcode;
+                do {
+                    opcode = random.nextInt(0x200);
+                } while (opcode == 0xCB || UNKNOWN.contains(opcode)
+                        || (i < block.length - 1 && BLOCK_ENDS.contains(opcode)));
+                block[i] = opcode;
+            }
+            blocks.add(block);
+            address = place(rom, address, block, random);
+        }
+        Path file = directory.resolve("blocks.gb");
+        Files.write(file, rom);
+        ROM cartridge = new ROM(file.toString());
+
+        boolean previous = Settings.LAZY_FLAGS;
+        Settings.LAZY_FLAGS = lazyFlags;
+        try {
+            DuckSwitchCPU interpreter = new DuckSwitchCPU(new DuckMemory(), null);
+            DuckRecompiler compiled = new DuckRecompiler(new DuckMemory(), null);
+            connect(interpreter, cartridge);
+            connect(compiled, cartridge);
+
+            int pc = CODE_START;
+            for (int[] block : blocks) {
+                long seed = random.nextLong();
+                reset(interpreter, pc, seed);
+                reset(compiled, pc, seed);
+
+                int[] instructions = new int[block.length];
+                int[] nextPcs = new int[block.length];
+                boolean[] abortChecks = new boolean[block.length];
+                int interpreterCycles = 0;
+                for (int i = 0; i < block.length; i++) {
+                    int length = length(block[i]);
+                    boolean isCB = block[i] >= DuckDecoder.CB_TABLE_OFFSET;
+                    int low = !isCB && length > 1 ? compiled.memory.read(pc + 1) : 0;
+                    int high = !isCB && length > 2 ? compiled.memory.read(pc + 2) : 0;
+                    instructions[i] = block[i] | (low << 9) | (high << 17);
+                    pc += length;
+                    nextPcs[i] = pc;
+                    abortChecks[i] = random.nextBoolean();
+                    interpreterCycles += interpreter.step();
+                }
+                int compiledCycles = BlockCompiler.compile(instructions, nextPcs, abortChecks, block.length)
+                        .run(compiled);
+
+                String name = describe(block) + " from seed " + seed;
+                assertEquals(interpreterCycles, compiledCycles, name);
+                assertEquals(state(interpreter), state(compiled), name);
+            }
+        } finally {
+            Settings.LAZY_FLAGS = previous;
+        }
+    }
+
+    /**
+     * Writes a block's instructions with random operands.
+     */
+    private static int place(byte[] rom, int address, int[] block, Random random) {
+        for (int opcode : block) {
+            if (opcode >= DuckDecoder.CB_TABLE_OFFSET)
+                rom[address++] = (byte) 0xCB;
+            rom[address++] = (byte) opcode;
+            for (int i = length(opcode) - (opcode >= DuckDecoder.CB_TABLE_OFFSET ? 2 : 1); i > 0; i--)
+                rom[address++] = (byte) random.nextInt(0x100);
+        }
+        return address;
+    }
+
+    private static int length(int opcode) {
+        if (opcode >= DuckDecoder.CB_TABLE_OFFSET)
+            return 2;
+        return 1 + DuckDecoder.getOperandCount(DuckDecoder.getTableIndex(opcode, false));
+    }
+
+    /**
+     * Gives a CPU the hardware its memory writes can reach.
+     */
+    private static void connect(DuckSwitchCPU cpu, ROM cartridge) {
+        DuckMemory memory = cpu.memory;
+        DuckScheduler scheduler = new DuckScheduler();
+        DuckPPU ppu = new DuckPPU(cpu, memory, new DuckDisplay(), scheduler);
+        DuckTimer timer = new DuckTimer(cpu, memory, scheduler);
+        scheduler.setHandler(DuckScheduler.EventType.PPU, ppu);
+        scheduler.setHandler(DuckScheduler.EventType.TIMER, timer);
+        ppu.registerIOHandlers();
+        timer.registerIOHandlers();
+        memory.setPPU(ppu);
+        memory.setScheduler(scheduler);
+        memory.loadROM(cartridge);
+    }
+
+    /**
+     * Puts random values in the registers, work RAM and high RAM. Stack
+     * traffic stays in work RAM; other addresses can be anywhere.
+     */
+    private static void reset(DuckSwitchCPU cpu, int pc, long seed) {
+        Random random = new Random(seed);
+        cpu.setPC(pc);
+        cpu.setAF(random.nextInt(0x10000) & 0xFFF0);
+        cpu.setBC(random.nextInt(0x10000));
+        cpu.setDE(random.nextInt(0x10000));
+        cpu.setHL(random.nextInt(4) == 0 ? random.nextInt(0x10000) : 0xC000 + random.nextInt(0x2000));
+        cpu.setSP(0xC100 + random.nextInt(0x1E00));
+        cpu.setInterruptEnable(false);
+        cpu.setStopped(false);
+        for (int address = 0xC000; address < 0xE000; address++)
+            cpu.memory.write(address, random.nextInt(0x100));
+        for (int address = 0xFF80; address < 0xFFFF; address++)
+            cpu.memory.write(address, random.nextInt(0x100));
+        cpu.memory.write(0xFFFF, 0);
+    }
+
+    private static String state(DuckSwitchCPU cpu) {
+        long hash = 0;
+        for (int address = 0x8000; address < 0x10000; address++)
+            hash = hash * 31 + cpu.memory.read(address);
+        return cpu + " IME:" + cpu.isInterruptMasterEnable() + " STOP:" + cpu.isStopped() + " memory:"
+                + Long.toHexString(hash);
+    }
+
+    private static String describe(int[] block) {
+        StringBuilder builder = new StringBuilder("block");
+        for (int opcode : block)
+            builder.append(opcode >= DuckDecoder.CB_TABLE_OFFSET ? " CB " : " ")
+                    .append(Integer.toHexString(opcode & 0xFF));
+        return builder.toString();
+    }
+}
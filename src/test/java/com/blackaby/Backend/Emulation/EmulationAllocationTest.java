@@ -0,0 +1,95 @@
+package com.blackaby.Backend.Emulation;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import com.blackaby.Frontend.DuckDisplay;
+import com.blackaby.Misc.Settings;
+import com.blackaby.Misc.Settings.CPUEngine;
+
+/**
+ * Checks that the emulation loop does not allocate once it has warmed up:
+ * instruction fetch and execution, interrupts, the scheduler, the timer and
+ * the PPU drawing frames.
+ */
+public class EmulationAllocationTest {
+    private static final int WARM_UP_FRAMES = 300;
+    private static final int MEASURED_FRAMES = 600;
+    // Room for the odd allocation by the JVM itself, far below one byte a frame
+    private static final long ALLOWED_BYTES = 16 * 1024;
+
+    // Enables the timer and the VBLANK and TIMER interrupts, then loops over
+    // loads, ALU and CB operations, stack traffic, ADD SP, e and a call, run
+    // from 0x0150
+    private static final int[] PROGRAM = {
+            0x31, 0xFE, 0xDF, // LD SP, 0xDFFE
+            0x3E, 0x05, // LD A, 0x05
+            0xE0, 0x07, // LDH (TAC), A
+            0xE0, 0xFF, // LDH (IE), A
+            0xFB, // EI
+            0x21, 0x00, 0xC0, // loop: LD HL, 0xC000
+            0x3E, 0x12, // LD A, 0x12
+            0x06, 0x34, // LD B, 0x34
+            0x80, // ADD A, B
+            0x0C, // INC C
+            0x77, // LD (HL), A
+            0x23, // INC HL
+            0xC5, // PUSH BC
+            0xD1, // POP DE
+            0xE8, 0x02, // ADD SP, 2
+            0xE8, 0xFE, // ADD SP, -2
+            0xCB, 0x37, // SWAP A
+            0xCB, 0x7F, // BIT 7, A
+            0xCD, 0x74, 0x01, // CALL 0x0174
+            0x18, 0xE6, // JR loop
+            0xC9, // RET
+    };
+
+    @ParameterizedTest
+    @EnumSource(CPUEngine.class)
+    public void runningFramesDoesNotAllocate(CPUEngine engine, @TempDir Path directory) throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] rom = new byte[0x8000];
+        rom[0x40] = (byte) 0xD9; // VBLANK: RETI
+        rom[0x50] = (byte) 0xD9; // TIMER: RETI
+        rom[0x101] = (byte) 0xC3; // JP 0x0150
+        rom[0x102] = 0x50;
+        rom[0x103] = 0x01;
+        for (int i = 0; i < PROGRAM.length; i++)
+            rom[0x150 + i] = (byte) PROGRAM[i];
+        Path file = directory.resolve("loop.gb");
+        Files.write(file, rom);
+
+        CPUEngine previous = Settings.CPU_ENGINE;
+        Settings.CPU_ENGINE = engine;
+        DuckEmulation emulation = new DuckEmulation(null, new DuckDisplay());
+        try {
+            emulation.createHardware(file.toString());
+        } finally {
+            Settings.CPU_ENGINE = previous;
+        }
+        emulation.powerOn();
+
+        emulation.runFrames(WARM_UP_FRAMES);
+        long threadId = Thread.currentThread().threadId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        emulation.runFrames(MEASURED_FRAMES);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(allocated < ALLOWED_BYTES,
+                allocated + " bytes allocated over " + MEASURED_FRAMES + " frames on " + engine);
+    }
+}
@@ -0,0 +1,30 @@
+package com.blackaby.Backend.Emulation.Graphics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the lookup table row decode against decoding one pixel at a time.
+ */
+public class TileCacheTest {
+
+    @Test
+    public void decodeRowMatchesPerPixelDecode() {
+        for (int low = 0; low < 256; low++) {
+            for (int high = 0; high < 256; high++) {
+                long pixels = TileCache.decodeRow(low, high);
+                long expected = 0;
+                long expectedMirrored = 0;
+                for (int x = 0; x < 8; x++) {
+                    int bit = 7 - x;
+                    long index = ((high >> bit) & 1) << 1 | ((low >> bit) & 1);
+                    expected |= index << (x * 8);
+                    expectedMirrored |= index << (bit * 8);
+                }
+                assertEquals(expected, pixels, "low " + low + ", high " + high);
+                assertEquals(expectedMirrored, Long.reverseBytes(pixels), "mirrored low " + low + ", high " + high);
+            }
+        }
+    }
+}
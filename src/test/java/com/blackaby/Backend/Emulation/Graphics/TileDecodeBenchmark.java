@@ -0,0 +1,83 @@
+package com.blackaby.Backend.Emulation.Graphics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares decoding all 384 tiles one pixel at a time, as
+ * {@link TileCache} used to, with the lookup table decode it uses now.
+ * Both fill the stored and mirrored index arrays.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath after
+ * {@code mvn test-compile}.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileDecodeBenchmark {
+    private static final VarHandle ROW = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[] tileData = new byte[TileCache.TILE_COUNT * 16];
+    private final byte[] indices = new byte[TileCache.TILE_COUNT * 64];
+    private final byte[] mirrored = new byte[TileCache.TILE_COUNT * 64];
+
+    @Setup
+    public void fillTileData() {
+        new Random(1).nextBytes(tileData);
+    }
+
+    @Benchmark
+    public byte[] perPixel() {
+        int offset = 0;
+        for (int address = 0; address < tileData.length; address += 2) {
+            int low = tileData[address];
+            int high = tileData[address + 1];
+            for (int x = 0; x < 8; x++) {
+                int bit = 7 - x;
+                byte index = (byte) (((high >> bit) & 1) << 1 | ((low >> bit) & 1));
+                indices[offset + x] = index;
+                mirrored[offset + bit] = index;
+            }
+            offset += 8;
+        }
+        return indices;
+    }
+
+    @Benchmark
+    public byte[] lookupTable() {
+        int offset = 0;
+        for (int address = 0; address < tileData.length; address += 2) {
+            long pixels = TileCache.decodeRow(tileData[address] & 0xFF, tileData[address + 1] & 0xFF);
+            ROW.set(indices, offset, pixels);
+            ROW.set(mirrored, offset, Long.reverseBytes(pixels));
+            offset += 8;
+        }
+        return indices;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TileDecodeBenchmark.class.getSimpleName()).build()).run();
+    }
+}